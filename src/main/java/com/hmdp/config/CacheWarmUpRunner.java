@@ -0,0 +1,176 @@
+package com.hmdp.config;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.PhoneUserIndex;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 缓存预热。
+ * 启动时先初始化店铺的布隆过滤器，再按id分页读取店铺，多线程序列化后用pipeline批量写入redis，
+ * 最后预热最近活跃用户的手机号索引。
+ * Spring Boot在所有ApplicationRunner执行完之后才把readiness置为ACCEPTING_TRAFFIC，
+ * 这里等到预热覆盖率达标再返回，剩余的部分在后台继续；超时或者预热失败时覆盖率达不到，直接启动失败。
+ * 测试和本地开发可以用hmdp.cache.warmup.enabled=false关闭启动预热，缓存在访问时按需加载
+ */
+@Slf4j
+@Component
+public class CacheWarmUpRunner implements ApplicationRunner {
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private IShopTypeService typeService;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private PhoneUserIndex phoneUserIndex;
+    @Value("${hmdp.cache.warmup.enabled:true}")
+    private boolean enabled;
+
+    private final ExecutorService readExecutor =
+            Executors.newSingleThreadExecutor(ThreadUtil.newNamedThreadFactory("cache-warmup-read-", true));
+    private final ExecutorService writeExecutor =
+            Executors.newFixedThreadPool(CACHE_WARMUP_THREADS, ThreadUtil.newNamedThreadFactory("cache-warmup-write-", true));
+
+    /**
+     * 当前正在进行的预热，同一时间只有一个
+     */
+    private CompletableFuture<Void> current;
+    /**
+     * 覆盖率达标时完成
+     */
+    private volatile CompletableFuture<Void> ready;
+    private volatile long total;
+    private final AtomicLong warmed = new AtomicLong();
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        if (!enabled){
+            log.info("启动时缓存预热已关闭");
+            return;
+        }
+        CompletableFuture<Void> future = warmUp();
+        try {
+            CompletableFuture.anyOf(future, ready).get(CACHE_WARMUP_READY_TIMEOUT, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(String.format("缓存预热未在%d秒内达到覆盖率%s, 当前覆盖率%s",
+                    CACHE_WARMUP_READY_TIMEOUT, CACHE_WARMUP_READY_COVERAGE, coverage()));
+        } catch (ExecutionException e) {
+            // 覆盖率已经达标之后的失败不影响启动，缓存会在访问时按需加载
+            log.error("缓存预热失败", e.getCause());
+        }
+        if (!ready.isDone()){
+            throw new IllegalStateException("缓存预热失败, 当前覆盖率" + coverage());
+        }
+    }
+
+    @PreDestroy
+    private void destroy(){
+        readExecutor.shutdownNow();
+        writeExecutor.shutdownNow();
+    }
+
+    /**
+     * 执行一次预热，已经有预热在进行时返回进行中的那次
+     */
+    public synchronized CompletableFuture<Void> warmUp(){
+        if (current != null && !current.isDone()){
+            return current;
+        }
+        ready = new CompletableFuture<>();
+        current = CompletableFuture.runAsync(this::doWarmUp, readExecutor);
+        return current;
+    }
+
+    /**
+     * 当前预热的覆盖率
+     */
+    public double coverage(){
+        return total == 0 ? 1 : (double) warmed.get() / total;
+    }
+
+    private void doWarmUp(){
+        long begin = System.currentTimeMillis();
+        //0. 店铺id布隆过滤器，失败时过滤器保持放行状态，不影响后续预热
+        try {
+            shopService.initBloomFilter();
+        } catch (Exception e) {
+            log.error("店铺布隆过滤器初始化失败", e);
+        }
+        //1. 店铺类型，未命中时会自动写入缓存
+        typeService.queryTypeList();
+        //2. 店铺，按id递增分页，避免深度分页
+        total = shopService.count();
+        warmed.set(0);
+        Semaphore inFlight = new Semaphore(CACHE_WARMUP_THREADS * 2);
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        long lastId = 0;
+        while (true){
+            List<Shop> shops = shopService.query()
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + CACHE_WARMUP_PAGE_SIZE)
+                    .list();
+            if (shops.isEmpty()){
+                break;
+            }
+            lastId = shops.get(shops.size() - 1).getId();
+            // 控制在途的批次，避免读得比写得快导致内存堆积
+            inFlight.acquireUninterruptibly();
+            writes.add(CompletableFuture.runAsync(() -> writeShops(shops, begin), writeExecutor)
+                    .whenComplete((v, e) -> inFlight.release()));
+            if (shops.size() < CACHE_WARMUP_PAGE_SIZE){
+                break;
+            }
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).join();
+        //3. 最近活跃用户的手机号索引，早高峰登录时不再查询数据库
+        try {
+            log.info("预热活跃用户手机号索引{}个", phoneUserIndex.preload());
+        } catch (Exception e) {
+            log.error("预热活跃用户手机号索引失败", e);
+        }
+        ready.complete(null);
+        log.info("缓存预热完成, 共{}个店铺, 耗时{}ms", warmed.get(), System.currentTimeMillis() - begin);
+    }
+
+    private void writeShops(List<Shop> shops, long begin){
+        Map<String, Shop> values = new HashMap<>(shops.size() * 4 / 3 + 1);
+        for (Shop shop : shops) {
+            values.put(CACHE_SHOP_KEY + shop.getId(), shop);
+        }
+        // 与ShopServiceImpl.queryById的读取方式保持一致，目前是带TTL的普通缓存
+        cacheClient.warmBatch(values, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        long count = warmed.addAndGet(shops.size());
+        long cost = Math.max(System.currentTimeMillis() - begin, 1);
+        log.info("缓存预热进度 {}/{}, 覆盖率{}%, {}条/秒",
+                count, total, String.format("%.1f", coverage() * 100), count * 1000 / cost);
+        if (coverage() >= CACHE_WARMUP_READY_COVERAGE){
+            ready.complete(null);
+        }
+    }
+}
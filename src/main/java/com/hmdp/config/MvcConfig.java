@@ -1,17 +1,35 @@
 package com.hmdp.config;
 
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.LoginSessionCache;
+import com.hmdp.utils.RateLimitInterceptor;
+import com.hmdp.utils.RateLimiter;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.SignedSessionTokens;
+import cn.hutool.core.collection.CollUtil;
+import cn.hutool.core.util.StrUtil;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
 @Configuration
 public class MvcConfig implements WebMvcConfigurer {
     @Autowired
-    private StringRedisTemplate stringRedisTemplate;
+    private LoginSessionCache loginSessionCache;
+    @Autowired
+    private SignedSessionTokens signedSessionTokens;
+    @Autowired
+    private RateLimiter rateLimiter;
+    /**
+     * 反向代理的ip，逗号分隔，只信任这些地址转发的X-Forwarded-For
+     */
+    @Value("${hmdp.limit.trusted-proxies:}")
+    private String trustedProxies;
 
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
@@ -26,6 +44,13 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/user/login"
                 ).order(1);
 
-        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
+        registry.addInterceptor(new RefreshTokenInterceptor(loginSessionCache, signedSessionTokens)).addPathPatterns("/**").order(0);
+
+        // 同一ip发送验证码、登录的频率限制，最先执行
+        Set<String> proxies = CollUtil.newHashSet(StrUtil.splitTrim(trustedProxies, ','));
+        registry.addInterceptor(new RateLimitInterceptor(rateLimiter, proxies, "code:ip",
+                RateLimiter.Rule.of(1, TimeUnit.MINUTES, 20))).addPathPatterns("/user/code").order(-1);
+        registry.addInterceptor(new RateLimitInterceptor(rateLimiter, proxies, "login:ip",
+                RateLimiter.Rule.of(1, TimeUnit.MINUTES, 60))).addPathPatterns("/user/login").order(-1);
     }
 }
@@ -90,6 +90,12 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private LocalDateTime endTime;
 
+    /**
+     * 秒杀库存分桶数，大于1时库存拆分到多个key
+     */
+    @TableField(exist = false)
+    private Integer bucketCount;
+
     /**
      * 创建时间
      */
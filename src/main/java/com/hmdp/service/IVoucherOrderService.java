@@ -1,8 +1,11 @@
 package com.hmdp.service;
 
+import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -13,4 +16,16 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IVoucherOrderService extends IService<VoucherOrder> {
 
+    Result seckillVoucher(Long voucherId);
+
+    /**
+     * 保存订单并扣减数据库库存，已经保存过的订单跳过
+     */
+    void createVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 在一个事务中批量保存订单，并按优惠券合并扣减数据库库存，已经保存过的订单跳过
+     */
+    void createVoucherOrders(List<VoucherOrder> voucherOrders);
+
 }
@@ -1,11 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.cache.Cache;
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSON;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
@@ -13,16 +7,16 @@ import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.CacheInvalidationBus;
+import com.hmdp.utils.RedisBloomFilter;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.time.LocalDateTime;
-import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import javax.annotation.PostConstruct;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import static com.hmdp.utils.RedisConstants.*;
@@ -35,6 +29,7 @@ import static com.hmdp.utils.RedisConstants.*;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
@@ -45,6 +40,23 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     private ShopTypeMapper shopTypeMapper;
     @Autowired
     private CacheClient cacheClient;
+    @Autowired
+    private CacheInvalidationBus invalidationBus;
+
+    /**
+     * 店铺id的布隆过滤器，拦截不存在的id
+     */
+    private RedisBloomFilter shopBloomFilter;
+
+    @PostConstruct
+    private void init() {
+        // 布隆过滤器在initBloomFilter完成之前不会拦截任何请求
+        shopBloomFilter = new RedisBloomFilter(stringRedisTemplate, invalidationBus, CACHE_SHOP_BLOOM_KEY,
+                CACHE_SHOP_BLOOM_EXPECTED, CACHE_SHOP_BLOOM_FPP);
+        cacheClient.registerBloomFilter(CACHE_SHOP_KEY, shopBloomFilter);
+        // 热点店铺在本地缓存一份，有效期远小于redis中的有效期
+        cacheClient.registerLocalCache(CACHE_SHOP_KEY, CACHE_SHOP_LOCAL_SIZE, CACHE_SHOP_LOCAL_TTL, TimeUnit.SECONDS);
+    }
 
     @Override
     public Result queryById(Long id) {
@@ -62,8 +74,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 缓存击穿，使用逻辑过期解决
 //        Shop shop = queryWithLogicalExpire(id);
         // 使用工具类逻辑过期，解决缓存击穿
-        cacheClient.queryWithLogicalExpire(
-                CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+//        Shop shop = cacheClient.queryWithLogicalExpire(
+//                CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
         return Result.ok(shop);
 //        String key = CACHE_SHOP_KEY + id;
@@ -96,121 +108,15 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     }
 
     private Shop queryWithMutex(Long id) {
-        String key = CACHE_SHOP_KEY + id;
-        //1. 从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2. 判断是否存在
-        if (StrUtil.isNotBlank(shopJson)){
-            //3. 存在，直接返回
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-        // 判断命中的是否是空值
-        //if (shopJson != null){
-        if (shopJson == ""){
-            // 查询redis缓存未命中，返回一个错误信息
-            return null;
-        }
-        // 4. 实现缓存重建
-        // 4.1 获取互斥锁
-        String lockkey = LOCK_SHOP_KEY;
-        Shop shop = null;
-        try {
-            boolean islock = trylock(lockkey);
-            // 4.2 判断是否成功
-            if (!islock){
-                // 4.3 失败，休眠并重试
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-            // 4.4 成功，根据id查询数据库
-            shop = getById(id);
-            // 模拟重建的延时
-            Thread.sleep(200);
-            // 双检，如果缓存存在，无需重建缓存
-            String shopJson2 = stringRedisTemplate.opsForValue().get(key);
-            //2. 判断是否存在
-            if (StrUtil.isNotBlank(shopJson2)){
-                //3. 存在，直接返回
-                Shop shop2 = JSONUtil.toBean(shopJson2, Shop.class);
-                return shop2;
-            }
-            // 判断命中的是否是空值
-            //if (shopJson != null){
-            if (shopJson2 == ""){
-                // 查询redis缓存未命中，返回一个错误信息
-                return null;
-            }
-
-            // 判断命中的是否是空值
-            //5. 不存在，返回错误
-            if (shop == null){
-                // 解决缓存穿透：向redis缓存写入空值
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
-            }
-            //6. shop存在，且不为空，写入redis
-            stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            //7. 释放互斥锁
-             unlock(lockkey);
-        }
-        //8. 返回
-        return shop;
+        // 未命中时只有一个请求重建缓存，其余请求等待重建完成的通知
+        return cacheClient.queryWithMutex(
+                CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
     public Shop queryWithLogicalExpire(Long id){
-        String key = CACHE_SHOP_KEY + id;
-        //1. 从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2. 判断是否存在
-        if (StrUtil.isBlank(shopJson)){
-            //3. 不存在，返回null
-            return null;
-        }
-        // 判断命中的是否是空值
-        //if (shopJson != null){
-        if (shopJson == ""){
-            // 返回一个错误信息
-            return null;
-        }
-        // 命中，不为空值，把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        Shop shop = JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-
-        // 判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())){
-            // 未过期，返回店铺信息
-            return shop;
-        }
-        // 已经过期，需要重建缓存
-        // 重建缓存
-        // 获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = trylock(lockKey);
-        // 判断是否获取到锁
-        if (isLock){
-            // 成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    // 重建缓存
-                    this.saveShop2Redis(id, 20L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    // 释放锁
-                    unlock(lockKey);
-                }
-                
-            });
-        }
-        // 返回过期的商铺信息
-        return shop;
+        // 逻辑过期，过期后返回旧数据并交给重建线程池异步重建
+        return cacheClient.queryWithLogicalExpire(
+                CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
 //    public Shop queryWithPassThrough(Long id){
@@ -254,19 +160,43 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         // 1. 更新数据库
         updateById(shop);
-        // 2. 删除redis缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        // 2. 删除redis缓存和本地缓存
+        cacheClient.delete(CACHE_SHOP_KEY + id);
         return Result.ok();
     }
 
-    private boolean trylock(String key){
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
+    @Override
+    public Result saveShop(Shop shop) {
+        // 1. 写入数据库
+        save(shop);
+        // 2. 加入布隆过滤器，否则新店铺会被拦截
+        shopBloomFilter.add(shop.getId());
+        return Result.ok(shop.getId());
     }
 
-    private void unlock(String key){
-        stringRedisTemplate.delete(key);
-
+    @Override
+    public void initBloomFilter() {
+        // 1. 分页读取所有店铺id，只查id列
+        long lastId = 0;
+        int count = 0;
+        while (true) {
+            List<Shop> shops = query().select("id")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + CACHE_SHOP_BLOOM_PAGE_SIZE)
+                    .list();
+            for (Shop shop : shops) {
+                shopBloomFilter.addLocal(shop.getId());
+            }
+            count += shops.size();
+            if (shops.size() < CACHE_SHOP_BLOOM_PAGE_SIZE) {
+                break;
+            }
+            lastId = shops.get(shops.size() - 1).getId();
+        }
+        // 2. 合并到redis，开始生效
+        shopBloomFilter.publish();
+        log.info("店铺布隆过滤器初始化完成，共{}个店铺", count);
     }
 
     public void saveShop2Redis(Long id, Long expirSeconds) throws InterruptedException {
@@ -274,11 +204,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         Shop shop = getById(id);
         // 模拟缓存重建的延时
         Thread.sleep(200);
-        // 使用RedisData封装逻辑国企时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expirSeconds));
-        // 写入Redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        // 带逻辑过期时间写入Redis
+        cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY + id, shop, expirSeconds, TimeUnit.SECONDS);
     }
 }
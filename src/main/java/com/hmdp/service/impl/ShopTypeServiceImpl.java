@@ -1,16 +1,14 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.lang.UUID;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.CacheClient;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
@@ -32,7 +30,7 @@ import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_TTL;
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
     @Autowired
-    private StringRedisTemplate stringRedisTemplate;
+    private CacheClient cacheClient;
     /**
      * 查询店铺的类型
      *
@@ -42,13 +40,10 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
     public Result queryTypeList() {
         // 1、从Redis中查询店铺类型
         String key = CACHE_SHOP_TYPE_KEY ; //+ UUID.randomUUID().toString(true);
-        String shopTypeJSON = stringRedisTemplate.opsForValue().get(key);
-
-        List<ShopType> typeList = null;
+        List<ShopType> typeList = cacheClient.getList(key, ShopType.class);
         // 2、判断缓存是否命中
-        if (StrUtil.isNotBlank(shopTypeJSON)) {
+        if (typeList != null) {
             // 2.1 缓存命中，直接返回缓存数据
-            typeList = JSONUtil.toList(shopTypeJSON, ShopType.class);
             return Result.ok(typeList);
         }
         // 2.1 缓存未命中，查询数据库
@@ -61,8 +56,7 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
             return Result.fail("店铺类型不存在");
         }
         // 3.2 店铺数据存在，写入Redis，并返回查询的数据
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(typeList),
-                CACHE_SHOP_TYPE_TTL, TimeUnit.MINUTES);
+        cacheClient.setList(key, typeList, CACHE_SHOP_TYPE_TTL, TimeUnit.MINUTES);
         return Result.ok(typeList);
     }
 
@@ -1,9 +1,9 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.bean.copier.CopyOptions;
 import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
@@ -11,7 +11,12 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.LoginSessionCache;
+import com.hmdp.utils.PhoneUserIndex;
+import com.hmdp.utils.RateLimiter;
+import com.hmdp.utils.SignedSessionTokens;
 import com.hmdp.utils.RegexUtils;
+import com.hmdp.utils.UserHashCodec;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -19,8 +24,6 @@ import org.springframework.stereotype.Service;
 
 import javax.servlet.http.HttpSession;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import static com.hmdp.utils.RedisConstants.*;
@@ -40,6 +43,29 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
 
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private LoginSessionCache loginSessionCache;
+    @Autowired
+    private SignedSessionTokens signedSessionTokens;
+    @Autowired
+    private RateLimiter rateLimiter;
+    @Autowired
+    private PhoneUserIndex phoneUserIndex;
+
+    /**
+     * 同一手机号发送验证码：1分钟1次，1小时5次，1天10次
+     */
+    private static final RateLimiter.Rule[] CODE_PHONE_RULES = {
+            RateLimiter.Rule.of(1, TimeUnit.MINUTES, 1),
+            RateLimiter.Rule.of(1, TimeUnit.HOURS, 5),
+            RateLimiter.Rule.of(1, TimeUnit.DAYS, 10)
+    };
+    /**
+     * 同一手机号登录：5分钟10次，防止暴力猜测验证码
+     */
+    private static final RateLimiter.Rule[] LOGIN_PHONE_RULES = {
+            RateLimiter.Rule.of(5, TimeUnit.MINUTES, 10)
+    };
 
     @Override
     public Result sendCode(String phone, HttpSession session) {
@@ -48,6 +74,11 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
             //1.1如果不符合，返回错误信息
             return Result.fail("手机格式有问题");
         }
+        //1.2 同一手机号发送过于频繁
+        long wait = rateLimiter.tryAcquire("code:phone", phone, CODE_PHONE_RULES);
+        if (wait > 0){
+            return Result.fail("发送过于频繁，请" + (wait + 999) / 1000 + "秒后再试");
+        }
 
         //2.符合，生成验证码
         String code = RandomUtil.randomNumbers(6);
@@ -69,6 +100,10 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         if (RegexUtils.isPhoneInvalid(phone)){
             return Result.fail("手机号不对");
         }
+        //1.3 同一手机号登录过于频繁
+        if (rateLimiter.tryAcquire("login:phone", phone, LOGIN_PHONE_RULES) > 0){
+            return Result.fail("登录过于频繁，请稍后再试");
+        }
 //        //2. 从session获取验证码
 //        Object cacheCode = session.getAttribute("code");
         // 2. 从redis获取验证码
@@ -84,35 +119,57 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
             return Result.fail("验证码错误");
         }
 
-        //4. 根据手机号查询用户是否存在
-        User user = query().eq("phone", phone).one();
+        //4. 根据手机号查询用户是否存在，先查手机号索引，再按主键查询
+        Long userId = phoneUserIndex.get(phone);
+        User user = userId == null ? null : getById(userId);
+        if (userId != null && user == null){
+            // 用户已经被删除，索引过期
+            phoneUserIndex.remove(phone);
+        }
         // 5. 不存在，创建用户，将用户保存到数据库
         if (user == null){
             user = createUserWithPhone(phone);
         }
+        phoneUserIndex.recordActive(phone);
 //        // 6. 存在，保存用户到session
 //        session.setAttribute("user", BeanUtil.copyProperties(user, UserDTO.class));
+        UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
+        if (signedSessionTokens.isEnabled()){
+            // 签名token本身携带用户信息，不需要保存到redis
+            return Result.ok(signedSessionTokens.issue(userDTO));
+        }
         // 6. 保存用户信息到redis中
         // 6.1 随机生成token，作为登录令牌
         String token = UUID.randomUUID().toString(true);
-        // 6.2 将User对象转为HashMap存储
-        UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
-        Map<String, Object> userMap = BeanUtil.beanToMap(userDTO, new HashMap<>(), CopyOptions.create()
-                .setIgnoreNullValue(true)
-                .setFieldValueEditor((fieldName, fieldValue) -> fieldValue.toString()));
-        // 6.3 存储到redis
-        stringRedisTemplate.opsForHash().putAll(LOGIN_USER_KEY + token, userMap);
-        // 6.4 设置有效期
+        // 6.2 存储到redis，直接转为hash，不经过反射
+        stringRedisTemplate.opsForHash().putAll(LOGIN_USER_KEY + token, UserHashCodec.toHash(userDTO));
+        // 6.3 设置有效期
         stringRedisTemplate.expire(LOGIN_USER_KEY + token, LOGIN_USER_TTL, TimeUnit.SECONDS);
         // 7. 返回token
         return Result.ok(token);
     }
 
+    @Override
+    public Result logout(String token) {
+        if (StrUtil.isBlank(token)){
+            return Result.ok();
+        }
+        if (SignedSessionTokens.isSigned(token)){
+            signedSessionTokens.revoke(token);
+        } else {
+            // 删除redis中的token，并清除各个节点的本地缓存
+            stringRedisTemplate.delete(LOGIN_USER_KEY + token);
+            loginSessionCache.invalidate(token);
+        }
+        return Result.ok();
+    }
+
     public User createUserWithPhone(String phone){
         User user = new User();
         user.setPhone(phone);
         user.setNickName(USER_NICK_NAME_PREFIX + RandomUtil.randomString(10));
         save(user);
+        phoneUserIndex.put(phone, user.getId());
         return user;
     }
 }
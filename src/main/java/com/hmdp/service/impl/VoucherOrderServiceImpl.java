@@ -1,10 +1,58 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.cache.Cache;
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.DistributedLock;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillGuard;
+import com.hmdp.utils.SeckillOrderTimeout;
+import com.hmdp.utils.SeckillStockBuckets;
+import com.hmdp.utils.StripedLock;
+import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -14,7 +62,356 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
 
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private RedisIdWorker redisIdWorker;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private TransactionTemplate transactionTemplate;
+    @Resource
+    private SeckillStockBuckets seckillStockBuckets;
+    @Resource
+    private SeckillGuard seckillGuard;
+    @Resource
+    private DistributedLock distributedLock;
+    @Resource
+    private SeckillOrderTimeout seckillOrderTimeout;
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    /**
+     * 秒杀资格判断脚本，库存判断、一人一单判断、扣减库存和下单消息在redis中一次完成
+     */
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 同一用户同一张券的请求在本节点串行处理
+     */
+    private final StripedLock orderLocks = new StripedLock(SECKILL_LOCAL_LOCK_STRIPES);
+    /**
+     * 最近的秒杀结果，重复提交时直接返回，不再访问redis
+     */
+    private final Cache<String, Result> recentResults =
+            CacheUtil.newLRUCache(SECKILL_IDEMPOTENT_SIZE, TimeUnit.MINUTES.toMillis(SECKILL_IDEMPOTENT_TTL));
+
+    /**
+     * 消费订单消息的线程
+     */
+    private final ExecutorService orderExecutor =
+            Executors.newSingleThreadExecutor(ThreadUtil.newNamedThreadFactory("seckill-order-", false));
+    private volatile boolean running = true;
+    /**
+     * 消费者名称，重启后保持不变，才能读到上次未确认的消息
+     */
+    private String consumerName;
+
+    @PostConstruct
+    private void init(){
+        consumerName = NetUtil.getLocalHostName() + ":" + serverPort;
+        orderExecutor.submit(this::handleOrders);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        running = false;
+        orderExecutor.shutdown();
+    }
+
+    @Override
+    public Result seckillVoucher(Long voucherId) {
+        // 0. 本地检查活动时间和售罄标记，不通过的请求不访问redis
+        String reason = seckillGuard.check(voucherId);
+        if (reason != null){
+            return Result.fail(reason);
+        }
+        Long userId = UserHolder.getUser().getId();
+        // 1. 同一个用户对同一张券的请求在本节点串行处理，重复提交直接返回第一次的结果
+        String idempotentKey = userId + ":" + voucherId;
+        ReentrantLock lock = orderLocks.get(userId, voucherId);
+        lock.lock();
+        try {
+            Result previous = recentResults.get(idempotentKey, false);
+            if (previous != null){
+                return previous;
+            }
+            Result result = admit(voucherId, userId);
+            // 只记录成功和重复下单，库存不足时库存可能会归还，下单失败时可以重试
+            if (BooleanUtil.isTrue(result.getSuccess()) || "不能重复下单".equals(result.getErrorMsg())){
+                recentResults.put(idempotentKey, result);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 在redis中判断购买资格，并发送下单消息
+     */
+    private Result admit(Long voucherId, Long userId){
+        int bucketCount = seckillStockBuckets.bucketCount(voucherId);
+        long orderId = 0;
+        int r;
+        if (bucketCount > 1){
+            // 分桶模式，桶之间可能不在同一个slot，资格判断后再单独发送下单消息，
+            // 订单id也在有购买资格后再生成，没有资格的请求不消耗id
+            r = seckillStockBuckets.admit(voucherId, userId, bucketCount);
+            if (r == 0){
+                try {
+                    orderId = redisIdWorker.nextId("order");
+                    sendOrder(userId, voucherId, orderId);
+                } catch (Exception e) {
+                    // 下单消息没有发出，订单不会落库，归还库存和下单资格
+                    log.error("发送下单消息失败, userId={}, voucherId={}", userId, voucherId, e);
+                    seckillStockBuckets.restore(voucherId, userId, bucketCount);
+                    return Result.fail("下单失败，请重试");
+                }
+            }
+        } else {
+            // 执行lua脚本，判断购买资格、扣减redis库存并发送下单消息。
+            // 下单消息要在脚本中原子发送，id只能提前生成；售罄和重复提交已经在本地拦截，到这里的请求大多能成功
+            orderId = redisIdWorker.nextId("order");
+            Long result = stringRedisTemplate.execute(SECKILL_SCRIPT,
+                    Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId, SECKILL_ORDER_STREAM),
+                    userId.toString(), voucherId.toString(), String.valueOf(orderId));
+            r = result == null ? 1 : result.intValue();
+        }
+        // 不为0，没有购买资格
+        if (r == 1){
+            // 库存不足，分桶模式下确认所有桶都为0后再标记售罄，误判时由分桶迁移任务清除标记
+            if (bucketCount <= 1 || seckillStockBuckets.remaining(voucherId, bucketCount) == 0){
+                markSoldOut(voucherId, bucketCount);
+            }
+            return Result.fail("库存不足");
+        }
+        if (r != 0){
+            return Result.fail("不能重复下单");
+        }
+        // 有购买资格，订单由后台线程异步写入数据库，直接返回订单id
+        return Result.ok(orderId);
+    }
+
+    /**
+     * 标记售罄后再检查一次库存。
+     * 从扣减失败到标记之间，超时订单可能已经归还了库存并清除过标记，这时晚到的标记不会再有人清除，
+     * 非分桶模式也没有后台任务兜底，所以发现还有库存时立即清除
+     */
+    private void markSoldOut(Long voucherId, int bucketCount){
+        seckillGuard.markSoldOut(voucherId);
+        long remaining;
+        if (bucketCount > 1){
+            remaining = seckillStockBuckets.remaining(voucherId, bucketCount);
+        } else {
+            String stock = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId);
+            remaining = StrUtil.isBlank(stock) ? 0 : Long.parseLong(stock);
+        }
+        if (remaining > 0){
+            seckillGuard.clearSoldOut(voucherId);
+        }
+    }
+
+    private void sendOrder(Long userId, Long voucherId, long orderId){
+        Map<String, String> message = new HashMap<>(4);
+        message.put("userId", userId.toString());
+        message.put("voucherId", voucherId.toString());
+        message.put("id", String.valueOf(orderId));
+        stringRedisTemplate.opsForStream().add(SECKILL_ORDER_STREAM, message);
+    }
+
+    /**
+     * 消费订单消息：先处理上次退出前未确认的消息，再循环读取新消息，每次最多读取一批
+     */
+    private void handleOrders(){
+        try {
+            createGroup();
+        } catch (Exception e) {
+            // 读取时遇到NOGROUP会再次创建
+            log.error("创建订单消费者组失败", e);
+        }
+        handlePendingList();
+        while (running){
+            try {
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                        StreamReadOptions.empty().count(SECKILL_ORDER_BATCH_SIZE).block(Duration.ofMillis(SECKILL_ORDER_BLOCK)),
+                        StreamOffset.create(SECKILL_ORDER_STREAM, ReadOffset.lastConsumed()));
+                if (records == null || records.isEmpty()){
+                    continue;
+                }
+                if (!handleRecords(records)){
+                    // 有订单处理失败，留在pending-list中稍后重试
+                    ThreadUtil.sleep(SECKILL_ORDER_RETRY_INTERVAL);
+                    handlePendingList();
+                }
+            } catch (Exception e) {
+                log.error("处理订单消息异常", e);
+                recreateGroupIfMissing(e);
+                ThreadUtil.sleep(SECKILL_ORDER_RETRY_INTERVAL);
+                handlePendingList();
+            }
+        }
+    }
+
+    /**
+     * 从头到尾处理一遍已读取但未确认的消息，处理失败的消息留到下一次
+     */
+    private void handlePendingList(){
+        String offset = "0";
+        while (running){
+            try {
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                        StreamReadOptions.empty().count(SECKILL_ORDER_BATCH_SIZE),
+                        StreamOffset.create(SECKILL_ORDER_STREAM, ReadOffset.from(offset)));
+                if (records == null || records.isEmpty()){
+                    return;
+                }
+                handleRecords(records);
+                offset = records.get(records.size() - 1).getId().getValue();
+            } catch (Exception e) {
+                log.error("处理pending-list订单异常", e);
+                recreateGroupIfMissing(e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 处理一批订单消息，数据库提交成功后才确认
+     * @return 是否全部处理成功
+     */
+    private boolean handleRecords(List<MapRecord<String, Object, Object>> records){
+        List<VoucherOrder> orders = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            orders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+        }
+        try {
+            createVoucherOrders(orders);
+            acknowledge(records.stream().map(MapRecord::getId).toArray(RecordId[]::new));
+            return true;
+        } catch (Exception e) {
+            log.warn("批量保存订单失败，逐条重试", e);
+        }
+        // 批量失败时逐条处理，避免一条异常数据拖住整批
+        boolean allSuccess = true;
+        for (int i = 0; i < records.size(); i++) {
+            try {
+                createVoucherOrder(orders.get(i));
+                acknowledge(records.get(i).getId());
+            } catch (Exception e) {
+                allSuccess = false;
+                log.error("保存订单失败, order={}", orders.get(i), e);
+            }
+        }
+        return allSuccess;
+    }
+
+    private void acknowledge(RecordId... ids){
+        stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, ids);
+    }
+
+    /**
+     * 创建消费者组，队列不存在时一起创建；消费者组已经存在时忽略，其它错误抛出
+     */
+    private void createGroup(){
+        try {
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XGROUP",
+                    bytes("CREATE"), bytes(SECKILL_ORDER_STREAM), bytes(SECKILL_ORDER_GROUP), bytes("0"), bytes("MKSTREAM")));
+        } catch (Exception e) {
+            if (!isRedisError(e, "BUSYGROUP")){
+                throw e;
+            }
+            log.debug("订单消费者组已存在");
+        }
+    }
+
+    /**
+     * 队列或消费者组被删除（例如redis重启后数据丢失）时读取会报NOGROUP，重新创建后下次循环再读
+     */
+    private void recreateGroupIfMissing(Exception e){
+        if (!isRedisError(e, "NOGROUP")){
+            return;
+        }
+        try {
+            createGroup();
+            log.warn("订单消费者组不存在，已重新创建");
+        } catch (Exception e1) {
+            log.error("重新创建订单消费者组失败", e1);
+        }
+    }
+
+    /**
+     * redis返回的错误信息以错误码开头，异常可能被spring和驱动包装多层
+     */
+    private static boolean isRedisError(Throwable e, String code){
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains(code)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] bytes(String s){
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void createVoucherOrder(VoucherOrder voucherOrder) {
+        // 逐条处理时再按用户加锁检查一人一单，防止redis中的下单记录丢失后重复下单
+        Long userId = voucherOrder.getUserId();
+        DistributedLock.Handle lock = distributedLock.tryLock(
+                LOCK_KEY_PREFIX + "order:" + userId, SECKILL_ORDER_LOCK_WAIT, TimeUnit.MILLISECONDS);
+        if (lock == null){
+            throw new IllegalStateException("获取下单锁超时, userId=" + userId);
+        }
+        try {
+            boolean bought = query().eq("user_id", userId)
+                    .eq("voucher_id", voucherOrder.getVoucherId())
+                    .ne("id", voucherOrder.getId())
+                    .count() > 0;
+            if (bought){
+                log.warn("用户已经购买过, 忽略订单 {}", voucherOrder);
+                return;
+            }
+            createVoucherOrders(Collections.singletonList(voucherOrder));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        Map<Long, List<VoucherOrder>> byVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        transactionTemplate.executeWithoutResult(status -> byVoucher.forEach((voucherId, orders) -> {
+            // 1. 多行插入，重复消费的订单、以及同一用户的第二个订单（唯一索引uk_user_voucher）被忽略
+            int inserted = getBaseMapper().insertIgnoreBatch(orders);
+            if (inserted == 0){
+                return;
+            }
+            // 2. 只按实际插入的条数扣减库存，一个优惠券一条update
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + inserted)
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", inserted)
+                    .update();
+            if (!success){
+                throw new IllegalStateException("库存不足, voucherId=" + voucherId);
+            }
+        }));
+        // 3. 提交后开始支付计时，重复消费时重新登记也不会改变截止时间
+        seckillOrderTimeout.track(voucherOrders);
+    }
 }
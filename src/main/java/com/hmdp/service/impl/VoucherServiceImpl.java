@@ -7,12 +7,17 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillGuard;
+import com.hmdp.utils.SeckillStockBuckets;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.util.List;
 
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
 /**
  * <p>
  *  服务实现类
@@ -26,6 +31,12 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
 
     @Resource
     private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillStockBuckets seckillStockBuckets;
+    @Resource
+    private SeckillGuard seckillGuard;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -47,5 +58,14 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        // 库存预热到redis，秒杀资格判断不再访问数据库
+        Integer bucketCount = voucher.getBucketCount();
+        if (bucketCount != null && bucketCount > 1){
+            // 超热门的优惠券库存拆分到多个桶
+            seckillStockBuckets.init(voucher.getId(), voucher.getStock(), bucketCount);
+        } else {
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        }
+        seckillGuard.evictWindow(voucher.getId());
     }
 }
@@ -0,0 +1,181 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.entity.Voucher;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 二进制格式的编解码。
+ * 普通缓存：1字节类型标识 + 数据；
+ * 逻辑过期缓存：1字节类型标识 + 8字节逻辑过期时间 + 数据，读取过期时间不需要解码数据；
+ * 列表：1字节类型标识 + 元素个数 + 每个元素的长度和数据。
+ * 没有注册结构的类型、以及切换前写入的JSON数据仍然按JSON处理
+ */
+@Component
+public class BinaryCacheCodec implements CacheCodec {
+    private static final byte MAGIC_PLAIN = (byte) 0xB1;
+    private static final byte MAGIC_EXPIRE = (byte) 0xB2;
+    private static final byte MAGIC_LIST = (byte) 0xB3;
+    private static final int EXPIRE_HEADER_LENGTH = 9;
+
+    private final CacheCodec fallback = new JsonCacheCodec();
+    private final Map<Class<?>, BinarySchema<?>> schemas = new ConcurrentHashMap<>();
+
+    public BinaryCacheCodec() {
+        // 字段编号一旦使用就不能修改，删除的字段编号也不要复用
+        register(Shop.class, BinarySchema.of(Shop::new)
+                .int64(1, Shop::getId, Shop::setId)
+                .string(2, Shop::getName, Shop::setName)
+                .int64(3, Shop::getTypeId, Shop::setTypeId)
+                .string(4, Shop::getImages, Shop::setImages)
+                .string(5, Shop::getArea, Shop::setArea)
+                .string(6, Shop::getAddress, Shop::setAddress)
+                .float64(7, Shop::getX, Shop::setX)
+                .float64(8, Shop::getY, Shop::setY)
+                .int64(9, Shop::getAvgPrice, Shop::setAvgPrice)
+                .int32(10, Shop::getSold, Shop::setSold)
+                .int32(11, Shop::getComments, Shop::setComments)
+                .int32(12, Shop::getScore, Shop::setScore)
+                .string(13, Shop::getOpenHours, Shop::setOpenHours)
+                .dateTime(14, Shop::getCreateTime, Shop::setCreateTime)
+                .dateTime(15, Shop::getUpdateTime, Shop::setUpdateTime)
+                .float64(16, Shop::getDistance, Shop::setDistance));
+        register(ShopType.class, BinarySchema.of(ShopType::new)
+                .int64(1, ShopType::getId, ShopType::setId)
+                .string(2, ShopType::getName, ShopType::setName)
+                .string(3, ShopType::getIcon, ShopType::setIcon)
+                .int32(4, ShopType::getSort, ShopType::setSort)
+                .dateTime(5, ShopType::getCreateTime, ShopType::setCreateTime)
+                .dateTime(6, ShopType::getUpdateTime, ShopType::setUpdateTime));
+        register(Voucher.class, BinarySchema.of(Voucher::new)
+                .int64(1, Voucher::getId, Voucher::setId)
+                .int64(2, Voucher::getShopId, Voucher::setShopId)
+                .string(3, Voucher::getTitle, Voucher::setTitle)
+                .string(4, Voucher::getSubTitle, Voucher::setSubTitle)
+                .string(5, Voucher::getRules, Voucher::setRules)
+                .int64(6, Voucher::getPayValue, Voucher::setPayValue)
+                .int64(7, Voucher::getActualValue, Voucher::setActualValue)
+                .int32(8, Voucher::getType, Voucher::setType)
+                .int32(9, Voucher::getStatus, Voucher::setStatus)
+                .int32(10, Voucher::getStock, Voucher::setStock)
+                .dateTime(11, Voucher::getBeginTime, Voucher::setBeginTime)
+                .dateTime(12, Voucher::getEndTime, Voucher::setEndTime)
+                .dateTime(13, Voucher::getCreateTime, Voucher::setCreateTime)
+                .dateTime(14, Voucher::getUpdateTime, Voucher::setUpdateTime));
+        register(UserDTO.class, BinarySchema.of(UserDTO::new)
+                .int64(1, UserDTO::getId, UserDTO::setId)
+                .string(2, UserDTO::getNickName, UserDTO::setNickName)
+                .string(3, UserDTO::getIcon, UserDTO::setIcon));
+    }
+
+    public <T> void register(Class<T> type, BinarySchema<T> schema){
+        schemas.put(type, schema);
+    }
+
+    /**
+     * @return 类型注册的结构，没有注册返回null
+     */
+    @SuppressWarnings("unchecked")
+    public <T> BinarySchema<T> schema(Class<T> type){
+        return (BinarySchema<T>) schemas.get(type);
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        BinarySchema<Object> schema = schemaOf(value.getClass());
+        if (schema == null){
+            return fallback.encode(value);
+        }
+        BinarySchema.Writer out = new BinarySchema.Writer(128);
+        out.writeByte(MAGIC_PLAIN);
+        schema.write(value, out);
+        return out.toByteArray();
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        BinarySchema<Object> schema = schemaOf(type);
+        if (schema == null || bytes[0] != MAGIC_PLAIN){
+            return fallback.decode(bytes, type);
+        }
+        return type.cast(schema.read(new BinarySchema.Reader(bytes, 1)));
+    }
+
+    @Override
+    public byte[] encodeWithExpire(Object value, long expireAt) {
+        BinarySchema<Object> schema = value == null ? null : schemaOf(value.getClass());
+        if (schema == null){
+            return fallback.encodeWithExpire(value, expireAt);
+        }
+        BinarySchema.Writer out = new BinarySchema.Writer(128);
+        out.writeByte(MAGIC_EXPIRE);
+        out.writeFixed64(expireAt);
+        schema.write(value, out);
+        return out.toByteArray();
+    }
+
+    @Override
+    public long readExpire(byte[] bytes) {
+        if (bytes[0] != MAGIC_EXPIRE){
+            return fallback.readExpire(bytes);
+        }
+        BinarySchema.Reader in = new BinarySchema.Reader(bytes, 1);
+        return in.readFixed64();
+    }
+
+    @Override
+    public <R> R decodeWithExpire(byte[] bytes, Class<R> type) {
+        BinarySchema<Object> schema = schemaOf(type);
+        if (schema == null || bytes[0] != MAGIC_EXPIRE){
+            return fallback.decodeWithExpire(bytes, type);
+        }
+        return type.cast(schema.read(new BinarySchema.Reader(bytes, EXPIRE_HEADER_LENGTH)));
+    }
+
+    @Override
+    public byte[] encodeList(List<?> values) {
+        BinarySchema<Object> schema = values.isEmpty() ? null : schemaOf(values.get(0).getClass());
+        if (schema == null){
+            return fallback.encodeList(values);
+        }
+        BinarySchema.Writer out = new BinarySchema.Writer(values.size() * 64 + 8);
+        out.writeByte(MAGIC_LIST);
+        out.writeVarint(values.size());
+        for (Object value : values) {
+            BinarySchema.Writer element = new BinarySchema.Writer(64);
+            schema.write(value, element);
+            byte[] bytes = element.toByteArray();
+            out.writeVarint(bytes.length);
+            out.writeBytes(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public <R> List<R> decodeList(byte[] bytes, Class<R> type) {
+        BinarySchema<Object> schema = schemaOf(type);
+        if (schema == null || bytes[0] != MAGIC_LIST){
+            return fallback.decodeList(bytes, type);
+        }
+        BinarySchema.Reader in = new BinarySchema.Reader(bytes, 1);
+        int size = (int) in.readVarint();
+        List<R> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int length = (int) in.readVarint();
+            values.add(type.cast(schema.read(in.slice(length))));
+        }
+        return values;
+    }
+
+    @SuppressWarnings("unchecked")
+    private BinarySchema<Object> schemaOf(Class<?> type){
+        return (BinarySchema<Object>) schemas.get(type);
+    }
+}
@@ -0,0 +1,299 @@
+package com.hmdp.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 实体类的二进制结构描述。
+ * 每个字段编码为 标签 + 值，标签 = 字段编号 << 3 | 值类型，值为null的字段不写入；
+ * 解码时遇到不认识的字段编号按值类型跳过，缺少的字段保持null，
+ * 所以新增、删除字段不影响新旧版本互相读取，但已有字段的编号不能修改
+ */
+public class BinarySchema<T> {
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_BYTES = 2;
+
+    private final Supplier<T> constructor;
+    private final List<Field<T, ?>> fields = new ArrayList<>();
+    private final Map<Integer, Field<T, ?>> fieldsByNumber = new HashMap<>();
+
+    private BinarySchema(Supplier<T> constructor) {
+        this.constructor = constructor;
+    }
+
+    public static <T> BinarySchema<T> of(Supplier<T> constructor){
+        return new BinarySchema<>(constructor);
+    }
+
+    public BinarySchema<T> int64(int number, Function<T, Long> getter, BiConsumer<T, Long> setter){
+        return add(new Field<>(number, FieldType.INT64, getter, setter));
+    }
+
+    public BinarySchema<T> int32(int number, Function<T, Integer> getter, BiConsumer<T, Integer> setter){
+        return add(new Field<>(number, FieldType.INT32, getter, setter));
+    }
+
+    public BinarySchema<T> float64(int number, Function<T, Double> getter, BiConsumer<T, Double> setter){
+        return add(new Field<>(number, FieldType.FLOAT64, getter, setter));
+    }
+
+    public BinarySchema<T> string(int number, Function<T, String> getter, BiConsumer<T, String> setter){
+        return add(new Field<>(number, FieldType.STRING, getter, setter));
+    }
+
+    public BinarySchema<T> dateTime(int number, Function<T, LocalDateTime> getter, BiConsumer<T, LocalDateTime> setter){
+        return add(new Field<>(number, FieldType.DATE_TIME, getter, setter));
+    }
+
+    private BinarySchema<T> add(Field<T, ?> field){
+        if (fieldsByNumber.put(field.number, field) != null){
+            throw new IllegalArgumentException("字段编号重复: " + field.number);
+        }
+        fields.add(field);
+        return this;
+    }
+
+    public void write(T value, Writer out){
+        for (Field<T, ?> field : fields) {
+            field.write(value, out);
+        }
+    }
+
+    public T read(Reader in){
+        T value = constructor.get();
+        while (in.hasRemaining()){
+            int tag = (int) in.readVarint();
+            Field<T, ?> field = fieldsByNumber.get(tag >>> 3);
+            if (field == null || field.type.wireType != (tag & 7)){
+                // 新版本增加的字段，跳过
+                in.skip(tag & 7);
+                continue;
+            }
+            field.read(value, in);
+        }
+        return value;
+    }
+
+    private enum FieldType {
+        INT64(WIRE_VARINT), INT32(WIRE_VARINT), FLOAT64(WIRE_FIXED64), STRING(WIRE_BYTES), DATE_TIME(WIRE_VARINT);
+
+        private final int wireType;
+
+        FieldType(int wireType) {
+            this.wireType = wireType;
+        }
+    }
+
+    private static class Field<T, V> {
+        private final int number;
+        private final FieldType type;
+        private final Function<T, V> getter;
+        private final BiConsumer<T, V> setter;
+
+        Field(int number, FieldType type, Function<T, V> getter, BiConsumer<T, V> setter) {
+            this.number = number;
+            this.type = type;
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        void write(T target, Writer out){
+            V value = getter.apply(target);
+            if (value == null){
+                return;
+            }
+            out.writeVarint((long) number << 3 | type.wireType);
+            switch (type) {
+                case INT64:
+                    out.writeVarint(zigzag((Long) value));
+                    break;
+                case INT32:
+                    out.writeVarint(zigzag((Integer) value));
+                    break;
+                case FLOAT64:
+                    out.writeFixed64(Double.doubleToRawLongBits((Double) value));
+                    break;
+                case STRING:
+                    byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+                    out.writeVarint(bytes.length);
+                    out.writeBytes(bytes);
+                    break;
+                case DATE_TIME:
+                    // 按UTC换算成毫秒，与时区无关
+                    out.writeVarint(zigzag(((LocalDateTime) value).toInstant(ZoneOffset.UTC).toEpochMilli()));
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void read(T target, Reader in){
+            Object value;
+            switch (type) {
+                case INT64:
+                    value = unzigzag(in.readVarint());
+                    break;
+                case INT32:
+                    value = (int) unzigzag(in.readVarint());
+                    break;
+                case FLOAT64:
+                    value = Double.longBitsToDouble(in.readFixed64());
+                    break;
+                case STRING:
+                    value = in.readString((int) in.readVarint());
+                    break;
+                case DATE_TIME:
+                    long millis = unzigzag(in.readVarint());
+                    value = LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000L),
+                            (int) Math.floorMod(millis, 1000L) * 1_000_000, ZoneOffset.UTC);
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+            setter.accept(target, (V) value);
+        }
+    }
+
+    private static long zigzag(long v){
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v){
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * 可扩容的字节缓冲区
+     */
+    public static class Writer {
+        private byte[] buf;
+        private int pos;
+
+        public Writer(int capacity) {
+            this.buf = new byte[capacity];
+        }
+
+        public void writeByte(int b){
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        public void writeVarint(long v){
+            ensure(10);
+            while ((v & ~0x7FL) != 0){
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        public void writeFixed64(long v){
+            ensure(8);
+            for (int i = 56; i >= 0; i -= 8) {
+                buf[pos++] = (byte) (v >>> i);
+            }
+        }
+
+        public void writeBytes(byte[] bytes){
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        public byte[] toByteArray(){
+            return Arrays.copyOf(buf, pos);
+        }
+
+        private void ensure(int n){
+            if (pos + n > buf.length){
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+            }
+        }
+    }
+
+    public static class Reader {
+        private final byte[] buf;
+        private final int limit;
+        private int pos;
+
+        public Reader(byte[] buf, int offset) {
+            this(buf, offset, buf.length);
+        }
+
+        private Reader(byte[] buf, int offset, int limit) {
+            this.buf = buf;
+            this.pos = offset;
+            this.limit = limit;
+        }
+
+        public boolean hasRemaining(){
+            return pos < limit;
+        }
+
+        /**
+         * 截取接下来的length个字节作为一个新的Reader，当前Reader跳过这部分
+         */
+        public Reader slice(int length){
+            Reader reader = new Reader(buf, pos, pos + length);
+            pos += length;
+            return reader;
+        }
+
+        public int readByte(){
+            return buf[pos++] & 0xFF;
+        }
+
+        public long readVarint(){
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buf[pos++];
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0){
+                    return result;
+                }
+            }
+            throw new IllegalArgumentException("varint格式错误");
+        }
+
+        public long readFixed64(){
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        public String readString(int length){
+            String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+
+        void skip(int wireType){
+            switch (wireType) {
+                case WIRE_VARINT:
+                    readVarint();
+                    break;
+                case WIRE_FIXED64:
+                    pos += 8;
+                    break;
+                case WIRE_BYTES:
+                    pos += (int) readVarint();
+                    break;
+                default:
+                    throw new IllegalArgumentException("未知的值类型: " + wireType);
+            }
+        }
+    }
+}
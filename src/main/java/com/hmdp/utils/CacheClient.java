@@ -1,21 +1,30 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import cn.hutool.cache.Cache;
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.core.util.RandomUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
-import org.yaml.snakeyaml.events.Event;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
 
 import static com.hmdp.utils.RedisConstants.*;
@@ -25,113 +34,608 @@ import static com.hmdp.utils.RedisConstants.*;
 public class CacheClient {
     @Autowired
     private final StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CacheInvalidationBus invalidationBus;
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+    @Resource
+    private CacheRebuildExecutor rebuildExecutor;
+    @Resource
+    private CacheCodec codec;
+    @Resource
+    private DistributedLock distributedLock;
+
+    /**
+     * 本地一级缓存，key为缓存前缀，每个前缀单独配置容量和过期时间
+     */
+    private final Map<String, Cache<String, Object>> localCaches = new ConcurrentHashMap<>();
+    /**
+     * 本地缓存中的空值占位，对应redis中缓存的空字符串
+     */
+    private static final Object NULL_VALUE = new Object();
+    /**
+     * redis中缓存的空值
+     */
+    private static final byte[] NULL_BYTES = new byte[0];
+    /**
+     * 各级缓存的命中统计
+     */
+    private final CacheStats stats = new CacheStats();
+    /**
+     * 本节点正在进行的重建，同一个key的并发请求共用一个future
+     */
+    private final Map<String, CompletableFuture<Object>> mutexRebuilds = new ConcurrentHashMap<>();
+    /**
+     * 等待其它节点重建完成通知的回调
+     */
+    private final Map<String, Runnable> rebuildWaiters = new ConcurrentHashMap<>();
+    /**
+     * 互斥锁模式下最近一次读到的值，等待重建超时时返回
+     */
+    private final Cache<String, Object> staleCopies = CacheUtil.newLRUCache(CACHE_STALE_SIZE);
+    /**
+     * 逻辑过期key的访问热度，热度越高越先重建
+     */
+    private final HotKeyTracker hotKeys = new HotKeyTracker(CACHE_HOT_KEY_CAPACITY);
+    /**
+     * 各前缀的布隆过滤器，判断不存在的id直接返回，不再查询redis和数据库
+     */
+    private final Map<String, RedisBloomFilter> bloomFilters = new ConcurrentHashMap<>();
 
     public CacheClient(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
+    @PostConstruct
+    private void init(){
+        // 其它节点修改了缓存，清理本地副本
+        invalidationBus.addListener(this::evictLocal);
+        // 其它节点重建缓存完成，唤醒本节点等待的请求
+        listenerContainer.addMessageListener((message, pattern) -> {
+            Runnable waiter = rebuildWaiters.remove(new String(message.getBody(), StandardCharsets.UTF_8));
+            if (waiter != null){
+                rebuildExecutor.execute(waiter);
+            }
+        }, new ChannelTopic(CACHE_REBUILT_CHANNEL));
+        // 热度定期衰减
+        rebuildExecutor.scheduleWithFixedDelay(hotKeys::decay,
+                CACHE_HOT_KEY_DECAY_INTERVAL, CACHE_HOT_KEY_DECAY_INTERVAL, TimeUnit.SECONDS);
+        // 布隆过滤器定期从redis合并，补上丢失的新增广播
+        // 同步要读取整个位数组，交给重建线程池执行，不占用调度线程
+        rebuildExecutor.scheduleWithFixedDelay(() -> rebuildExecutor.execute(this::syncBloomFilters),
+                CACHE_BLOOM_SYNC_INTERVAL, CACHE_BLOOM_SYNC_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 为指定前缀开启本地一级缓存
+     * @param keyPrefix 缓存key前缀
+     * @param capacity 最多缓存的条数，超出后按LRU淘汰
+     * @param time 本地缓存有效期，应远小于redis中的有效期
+     * @param unit 时间单位
+     */
+    public void registerLocalCache(String keyPrefix, int capacity, Long time, TimeUnit unit){
+        localCaches.put(keyPrefix, CacheUtil.newLRUCache(capacity, unit.toMillis(time)));
+    }
+
+    /**
+     * 为指定前缀开启布隆过滤器，防止不存在的id穿透到redis和数据库
+     */
+    public void registerBloomFilter(String keyPrefix, RedisBloomFilter bloomFilter){
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+
+    public CacheStats getStats(){
+        return stats;
+    }
+
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        setRaw(key, codec.encode(value), time, unit);
+        invalidate(key);
+    }
+
+    /**
+     * 删除缓存，同时清理本节点和其它节点的本地缓存
+     */
+    public void delete(String key){
+        stringRedisTemplate.delete(key);
+        invalidate(key);
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit){
         // 设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        redisData.setData(value);
+        long expireAt = System.currentTimeMillis() + unit.toMillis(time);
         // 写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        setRaw(key, codec.encodeWithExpire(value, expireAt));
+        invalidate(key);
+    }
+
+    /**
+     * 缓存一个列表
+     */
+    public void setList(String key, List<?> values, Long time, TimeUnit unit){
+        setRaw(key, codec.encodeList(values), time, unit);
+        invalidate(key);
+    }
+
+    /**
+     * 读取缓存的列表
+     * @return 未命中时返回null
+     */
+    public <R> List<R> getList(String key, Class<R> type){
+        byte[] bytes = getRaw(key);
+        if (bytes == null || bytes.length == 0){
+            stats.recordRedisMiss();
+            return null;
+        }
+        stats.recordRedisHit();
+        return codec.decodeList(bytes, type);
+    }
+
+    /**
+     * 批量写入带过期时间的缓存，通过pipeline一次发送。
+     * 过期时间随机增加最多10%，避免同时写入的一批key同时过期
+     * @param values key到数据的映射
+     */
+    public void setBatch(Map<String, ?> values, Long time, TimeUnit unit){
+        writeBatch(values, time, unit);
+        values.keySet().forEach(this::invalidate);
+    }
+
+    /**
+     * 缓存预热专用的批量写入，只清理本节点的本地缓存，不广播失效消息。
+     * 预热写入的是数据库中的当前数据，其它节点的本地副本很快会自然过期，
+     * 不需要为几十万个key各发一条广播
+     */
+    public void warmBatch(Map<String, ?> values, Long time, TimeUnit unit){
+        writeBatch(values, time, unit);
+        values.keySet().forEach(this::evictLocal);
+    }
+
+    private void writeBatch(Map<String, ?> values, Long time, TimeUnit unit){
+        long seconds = unit.toSeconds(time);
+        Map<String, byte[]> encoded = new HashMap<>(values.size() * 4 / 3 + 1);
+        values.forEach((key, value) -> encoded.put(key, codec.encode(value)));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            encoded.forEach((key, bytes) ->
+                    connection.setEx(rawKey(key), seconds + RandomUtil.randomLong(seconds / 10 + 1), bytes));
+            return null;
+        });
+    }
+
+    /**
+     * 批量写入逻辑过期的缓存，通过pipeline一次发送
+     * @param values key到数据的映射
+     */
+    public void setBatchWithLogicalExpire(Map<String, ?> values, Long time, TimeUnit unit){
+        long expireAt = System.currentTimeMillis() + unit.toMillis(time);
+        // 序列化放在pipeline外面，避免占用连接
+        Map<String, byte[]> encoded = new HashMap<>(values.size() * 4 / 3 + 1);
+        values.forEach((key, value) -> encoded.put(key, codec.encodeWithExpire(value, expireAt)));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            encoded.forEach((key, bytes) -> connection.set(rawKey(key), bytes));
+            return null;
+        });
+        for (String key : encoded.keySet()) {
+            invalidate(key);
+        }
+    }
+
+    /**
+     * 批量查询，解决缓存穿透。
+     * 本地缓存之后用一次MGET查询redis，未命中的id用一次数据库查询加载，再用一次pipeline写回，
+     * 数据库中不存在的id写入空值
+     * @param ids 要查询的id
+     * @param dbFallback 根据一批id查询数据库，返回id到数据的映射
+     * @return id到数据的映射，不存在的id不包含在内，顺序与ids一致
+     */
+    public <R, ID> Map<ID, R> queryBatchWithPassThrough(
+            String keyPrefix, Collection<ID> ids, Class<R> type,
+            Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit){
+        Map<ID, R> result = new LinkedHashMap<>(ids.size() * 4 / 3 + 1);
+        if (ids.isEmpty()){
+            return result;
+        }
+        //1. 先查本地缓存
+        Cache<String, Object> localCache = localCaches.get(keyPrefix);
+        List<ID> redisIds = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            if (rejectedByBloom(keyPrefix, id)){
+                continue;
+            }
+            Object cached = localCache == null ? null : localCache.get(keyPrefix + id, false);
+            if (cached == null){
+                redisIds.add(id);
+                continue;
+            }
+            stats.recordLocalHit();
+            if (cached != NULL_VALUE){
+                result.put(id, type.cast(cached));
+            }
+        }
+        if (redisIds.isEmpty()){
+            return result;
+        }
+        //2. 一次MGET查询redis
+        List<String> keys = new ArrayList<>(redisIds.size());
+        byte[][] rawKeys = new byte[redisIds.size()][];
+        for (int i = 0; i < redisIds.size(); i++) {
+            keys.add(keyPrefix + redisIds.get(i));
+            rawKeys[i] = rawKey(keys.get(i));
+        }
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < redisIds.size(); i++) {
+            ID id = redisIds.get(i);
+            byte[] bytes = values == null ? null : values.get(i);
+            if (localCache != null){
+                stats.recordLocalMiss();
+            }
+            if (bytes == null){
+                stats.recordRedisMiss();
+                missIds.add(id);
+                continue;
+            }
+            stats.recordRedisHit();
+            R r = decode(bytes, type);
+            putLocal(localCache, keys.get(i), r);
+            if (r != null){
+                result.put(id, r);
+            }
+        }
+        if (missIds.isEmpty()){
+            return reorder(ids, result);
+        }
+        //3. 一次查询数据库加载所有未命中的id
+        Map<ID, R> loaded = dbFallback.apply(missIds);
+        //4. 一次pipeline写回redis，不存在的id写入空值
+        long seconds = unit.toSeconds(time);
+        long nullSeconds = TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL);
+        Map<String, byte[]> writes = new HashMap<>(missIds.size() * 4 / 3 + 1);
+        for (ID id : missIds) {
+            R r = loaded.get(id);
+            String key = keyPrefix + id;
+            writes.put(key, r == null ? NULL_BYTES : codec.encode(r));
+            putLocal(localCache, key, r);
+            if (r != null){
+                result.put(id, r);
+            }
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            writes.forEach((key, bytes) ->
+                    connection.setEx(rawKey(key), bytes.length == 0 ? nullSeconds : seconds, bytes));
+            return null;
+        });
+        return reorder(ids, result);
+    }
+
+    private static <R, ID> Map<ID, R> reorder(Collection<ID> ids, Map<ID, R> found){
+        Map<ID, R> ordered = new LinkedHashMap<>(found.size() * 4 / 3 + 1);
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null){
+                ordered.put(id, r);
+            }
+        }
+        return ordered;
     }
 
     public <R, ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
         String key = keyPrefix + id;
+        // 布隆过滤器判断不存在，直接返回
+        if (rejectedByBloom(keyPrefix, id)){
+            return null;
+        }
+        //0. 先查本地缓存
+        Cache<String, Object> localCache = localCaches.get(keyPrefix);
+        if (localCache != null){
+            // 不刷新访问时间，保证本地缓存按写入时间过期
+            Object cached = localCache.get(key, false);
+            if (cached != null){
+                stats.recordLocalHit();
+                return cached == NULL_VALUE ? null : type.cast(cached);
+            }
+            stats.recordLocalMiss();
+        }
         //1. 从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getRaw(key);
         //2. 判断是否存在
-        if (StrUtil.isNotBlank(json)){
+        if (bytes != null && bytes.length > 0){
             //3. 存在，直接返回
-            return JSONUtil.toBean(json, type);
+            stats.recordRedisHit();
+            R r = codec.decode(bytes, type);
+            putLocal(localCache, key, r);
+            return r;
         }
         // 判断命中的是否是空值
-        //if (shopJson != null){
-        if (json != ""){
+        if (bytes != null){
             // 返回一个错误信息
+            stats.recordRedisHit();
+            putLocal(localCache, key, null);
             return null;
         }
-        //4. 不存在，根据id查询数据库
+        stats.recordRedisMiss();
+        //4. 不存在，与互斥锁模式共用重建：本节点同一个key只发起一次，拿到锁的请求在自己的线程中加载，
+        //   其它请求等待重建完成，等待有上限，超时或重建失败时直接查询数据库
+        R r;
+        try {
+            r = type.cast(rebuild(key, id, type, dbFallback, time, unit, true).get(CACHE_LOAD_WAIT, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (TimeoutException e) {
+            log.warn("等待缓存重建超时，直接查询数据库, key={}", key);
+            return dbFallback.apply(id);
+        } catch (ExecutionException e) {
+            log.warn("缓存重建失败，直接查询数据库, key={}", key, e.getCause());
+            return dbFallback.apply(id);
+        }
+        putLocal(localCache, key, r);
+        return r;
+    }
+
+    private void syncBloomFilters(){
+        bloomFilters.forEach((keyPrefix, bloomFilter) -> {
+            try {
+                bloomFilter.sync();
+            } catch (Exception e) {
+                log.error("同步布隆过滤器失败, keyPrefix={}", keyPrefix, e);
+            }
+        });
+    }
+
+    private boolean rejectedByBloom(String keyPrefix, Object id){
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if (bloomFilter == null || bloomFilter.mightContain(id)){
+            return false;
+        }
+        stats.recordBloomReject();
+        return true;
+    }
+
+    private void putLocal(Cache<String, Object> localCache, String key, Object value){
+        if (localCache != null){
+            localCache.put(key, value == null ? NULL_VALUE : value);
+        }
+    }
+
+    /**
+     * 清理本地缓存，并在开启了本地缓存时广播给其它节点
+     */
+    private void invalidate(String key){
+        if (evictLocal(key)){
+            invalidationBus.publish(key);
+        }
+    }
+
+    /**
+     * @return key所属的前缀是否开启了本地缓存
+     */
+    private boolean evictLocal(String key){
+        boolean matched = false;
+        for (Map.Entry<String, Cache<String, Object>> entry : localCaches.entrySet()) {
+            if (key.startsWith(entry.getKey())){
+                entry.getValue().remove(key);
+                matched = true;
+            }
+        }
+        return matched;
+    }
+
+
+    /**
+     * 互斥锁方式解决缓存击穿，同步等待结果，等待期间会阻塞调用线程。
+     * 不希望阻塞调用线程时使用queryWithMutexAsync
+     */
+    public <R, ID> R queryWithMutex(
+            String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
+        return queryWithMutexAsync(keyPrefix, id, type, dbFallback, time, unit).join();
+    }
+
+    /**
+     * 互斥锁方式解决缓存击穿。
+     * 未命中时只有拿到锁的节点重建缓存，其余请求等待重建完成的通知，而不是休眠后重试；
+     * 等待超过上限时返回旧值，没有旧值再直接查询数据库。
+     */
+    public <R, ID> CompletableFuture<R> queryWithMutexAsync(
+            String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+        if (rejectedByBloom(keyPrefix, id)){
+            return CompletableFuture.completedFuture(null);
+        }
+        //1. 从redis查询缓存
+        byte[] bytes = getRaw(key);
+        //2. 命中，直接返回
+        if (bytes != null){
+            stats.recordRedisHit();
+            return CompletableFuture.completedFuture(decodeAndKeep(key, bytes, type));
+        }
+        stats.recordRedisMiss();
+        //3. 未命中，重建缓存
+        return rebuild(key, id, type, dbFallback, time, unit, false).thenApply(type::cast);
+    }
+
+    /**
+     * 本节点同一个key只发起一次重建，并发的请求共用同一个future
+     * @param inline 拿到锁时是否在当前线程重建，否则交给重建线程池
+     */
+    private <R, ID> CompletableFuture<Object> rebuild(String key, ID id, Class<R> type,
+                                                      Function<ID, R> dbFallback, Long time, TimeUnit unit, boolean inline){
+        CompletableFuture<Object> rebuild = new CompletableFuture<>();
+        CompletableFuture<Object> existing = mutexRebuilds.putIfAbsent(key, rebuild);
+        if (existing == null){
+            startMutexRebuild(key, rebuild, id, type, dbFallback, time, unit, inline);
+            existing = rebuild;
+        }
+        return existing;
+    }
+
+    private <R, ID> void startMutexRebuild(String key, CompletableFuture<Object> rebuild, ID id, Class<R> type,
+                                           Function<ID, R> dbFallback, Long time, TimeUnit unit, boolean inline){
+        rebuild.whenComplete((r, e) -> mutexRebuilds.remove(key, rebuild));
+        try {
+            DistributedLock.Handle lock = distributedLock.tryLock(LOCK_KEY_PREFIX + key);
+            if (lock != null){
+                //4. 获取锁成功，重建缓存，重建完成后释放锁
+                Runnable task = () -> rebuildLocked(key, rebuild, lock, id, type, dbFallback, time, unit);
+                if (inline){
+                    task.run();
+                    return;
+                }
+                try {
+                    rebuildExecutor.execute(task);
+                } catch (RuntimeException e) {
+                    lock.unlock();
+                    throw e;
+                }
+                return;
+            }
+            //5. 其它节点正在重建，等待它的通知
+            Runnable waiter = () -> completeFromRedis(key, rebuild, id, type, dbFallback, time, unit);
+            rebuildWaiters.put(key, waiter);
+            rebuild.whenComplete((r, e) -> rebuildWaiters.remove(key, waiter));
+            // 通知可能在注册之前就已经发出，再检查一次
+            byte[] bytes = getRaw(key);
+            if (bytes != null){
+                rebuild.complete(decodeAndKeep(key, bytes, type));
+                return;
+            }
+            //6. 等待超时，优先返回旧值，保证等待时间有上限
+            rebuildExecutor.schedule(() -> {
+                if (rebuild.isDone()){
+                    return;
+                }
+                Object stale = staleCopies.get(key, false);
+                if (stale != null){
+                    rebuild.complete(stale == NULL_VALUE ? null : stale);
+                    return;
+                }
+                rebuildExecutor.execute(waiter);
+            }, CACHE_MUTEX_WAIT, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            // redis超时等异常时结束这次重建，从mutexRebuilds中移除，之后的请求重新发起
+            rebuild.completeExceptionally(e);
+        }
+    }
+
+    private <R, ID> void rebuildLocked(String key, CompletableFuture<Object> rebuild, DistributedLock.Handle lock,
+                                       ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
+        try {
+            // 双检，锁可能是刚被其它节点释放的
+            byte[] bytes = getRaw(key);
+            rebuild.complete(bytes != null
+                    ? decodeAndKeep(key, bytes, type)
+                    : loadAndWrite(key, id, type, dbFallback, time, unit));
+        } catch (Exception e) {
+            rebuild.completeExceptionally(e);
+        } finally {
+            lock.unlock();
+            // 通知所有节点重建完成
+            stringRedisTemplate.convertAndSend(CACHE_REBUILT_CHANNEL, key);
+        }
+    }
+
+    /**
+     * 读取其它节点重建好的缓存，仍然没有则直接查询数据库
+     */
+    private <R, ID> void completeFromRedis(String key, CompletableFuture<Object> rebuild,
+                                           ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
+        if (rebuild.isDone()){
+            return;
+        }
+        try {
+            byte[] bytes = getRaw(key);
+            rebuild.complete(bytes != null
+                    ? decodeAndKeep(key, bytes, type)
+                    : loadAndWrite(key, id, type, dbFallback, time, unit));
+        } catch (Exception e) {
+            rebuild.completeExceptionally(e);
+        }
+    }
+
+    private <R, ID> R loadAndWrite(String key, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
         R r = dbFallback.apply(id);
-        //5. 不存在，返回错误
         if (r == null){
             // 解决缓存穿透：向redis缓存写入空值
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
+            setRaw(key, NULL_BYTES, CACHE_NULL_TTL, TimeUnit.MINUTES);
+        } else {
+            setRaw(key, codec.encode(r), time, unit);
         }
-        //6. 存在，写入redis
-        this.set(key, r, time, unit);
-        //7. 返回
+        staleCopies.put(key, r == null ? NULL_VALUE : r);
         return r;
     }
 
-
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    private <R> R decodeAndKeep(String key, byte[] bytes, Class<R> type){
+        R r = decode(bytes, type);
+        staleCopies.put(key, r == null ? NULL_VALUE : r);
+        return r;
+    }
 
     public <R, ID> R queryWithLogicalExpire(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
         String key = keyPrefix + id;
+        hotKeys.record(key);
         //1. 从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getRaw(key);
         //2. 判断是否存在
-        if (StrUtil.isBlank(json)){
+        if (bytes == null || bytes.length == 0){
             //3. 不存在，返回null
             return null;
         }
 
-        // 命中，不为空值，把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        // 命中，不为空值，只读取头部的逻辑过期时间，不需要解码数据
+        long expireAt = codec.readExpire(bytes);
+        R r = codec.decodeWithExpire(bytes, type);
 
         // 判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())){
+        if (expireAt > System.currentTimeMillis()){
             // 未过期，返回店铺信息
             return r;
         }
         // 已经过期，需要重建缓存
-        // 重建缓存
-        // 获取互斥锁
-        String lockKey = keyPrefix + id;
-        boolean isLock = trylock(lockKey);
-        // 判断是否获取到锁
-        if (isLock){
-            // 成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    // 重建缓存1:查询数据库
-                    R r1 = dbFallback.apply(id);
-                    // 重建缓存2：保存到redis
-                    this.setWithLogicalExpire(key, r1, time, unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    // 释放锁
-                    unlock(lockKey);
-                }
-
-            });
-        }
+        // 提交到重建线程池，同一个key排队中时不会重复提交，越热的key越先重建
+        rebuildExecutor.submit(key, hotKeys.heat(key), () -> {
+            // 获取互斥锁，其它节点正在重建时直接放弃
+            DistributedLock.Handle lock = distributedLock.tryLock(LOCK_KEY_PREFIX + key);
+            if (lock == null){
+                return;
+            }
+            try {
+                // 重建缓存1:查询数据库
+                R r1 = dbFallback.apply(id);
+                // 重建缓存2：保存到redis
+                this.setWithLogicalExpire(key, r1, time, unit);
+            } finally {
+                // 释放锁
+                lock.unlock();
+            }
+        });
         // 返回过期的商铺信息
         return r;
     }
 
-    private boolean trylock(String key){
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
+    private static byte[] rawKey(String key){
+        return key.getBytes(StandardCharsets.UTF_8);
     }
 
-    private void unlock(String key){
-        stringRedisTemplate.delete(key);
+    private byte[] getRaw(String key){
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey(key)));
+    }
+
+    private void setRaw(String key, byte[] value){
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> connection.set(rawKey(key), value));
+    }
+
+    private void setRaw(String key, byte[] value, long time, TimeUnit unit){
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.pSetEx(rawKey(key), unit.toMillis(time), value));
+    }
 
+    /**
+     * 解码普通缓存，空值返回null
+     */
+    private <R> R decode(byte[] bytes, Class<R> type){
+        return bytes.length == 0 ? null : codec.decode(bytes, type);
     }
 
 }
@@ -0,0 +1,45 @@
+package com.hmdp.utils;
+
+import java.util.List;
+
+/**
+ * 缓存值的编解码，CacheClient通过它读写redis中的数据
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码普通缓存
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 解码普通缓存
+     */
+    <R> R decode(byte[] bytes, Class<R> type);
+
+    /**
+     * 编码带逻辑过期时间的缓存
+     * @param expireAt 逻辑过期时间，毫秒时间戳
+     */
+    byte[] encodeWithExpire(Object value, long expireAt);
+
+    /**
+     * 读取逻辑过期时间，毫秒时间戳
+     */
+    long readExpire(byte[] bytes);
+
+    /**
+     * 解码带逻辑过期时间的缓存中的数据
+     */
+    <R> R decodeWithExpire(byte[] bytes, Class<R> type);
+
+    /**
+     * 编码列表，元素类型相同
+     */
+    byte[] encodeList(List<?> values);
+
+    /**
+     * 解码列表
+     */
+    <R> List<R> decodeList(byte[] bytes, Class<R> type);
+}
@@ -0,0 +1,140 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 本地缓存失效广播。
+ * 某个节点删除或更新缓存后，把key攒成一批通过redis发布订阅发给其它节点，
+ * 其它节点收到后清理自己的本地缓存。
+ * 消息格式：第一行是发送节点id，之后每行是 前缀|id1,id2,...
+ */
+@Slf4j
+@Component
+public class CacheInvalidationBus implements MessageListener {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * 当前节点id，收到自己发出的消息时直接忽略
+     */
+    private final String nodeId = UUID.randomUUID().toString(true);
+    /**
+     * 待广播的key，同一个key在一个批次内只发一次
+     */
+    private final Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService flushExecutor =
+            Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("cache-invalidate-", true));
+
+    @PostConstruct
+    private void init(){
+        listenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        flushExecutor.scheduleWithFixedDelay(this::flush,
+                CACHE_INVALIDATE_INTERVAL, CACHE_INVALIDATE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        flushExecutor.shutdown();
+        flush();
+    }
+
+    /**
+     * 注册失效回调，收到其它节点广播的key时调用
+     */
+    public void addListener(Consumer<String> listener){
+        listeners.add(listener);
+    }
+
+    /**
+     * 广播一个失效的key，实际发送是异步批量进行的
+     */
+    public void publish(String key){
+        pendingKeys.add(key);
+        if (pendingKeys.size() >= CACHE_INVALIDATE_BATCH_SIZE){
+            // 写入突增时不必等到下一个周期
+            flushExecutor.execute(this::flush);
+        }
+    }
+
+    private void flush(){
+        while (!pendingKeys.isEmpty()){
+            // 1. 取出一批key
+            List<String> batch = new ArrayList<>(CACHE_INVALIDATE_BATCH_SIZE);
+            Iterator<String> it = pendingKeys.iterator();
+            while (it.hasNext() && batch.size() < CACHE_INVALIDATE_BATCH_SIZE){
+                batch.add(it.next());
+                it.remove();
+            }
+            // 2. 编码后发布
+            try {
+                stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, encode(batch));
+            } catch (Exception e) {
+                log.error("广播缓存失效消息失败, 共{}个key", batch.size(), e);
+            }
+        }
+    }
+
+    private String encode(List<String> keys){
+        // 按前缀分组，前缀只写一次
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        for (String key : keys) {
+            int i = key.lastIndexOf(':') + 1;
+            groups.computeIfAbsent(key.substring(0, i), k -> new ArrayList<>()).add(key.substring(i));
+        }
+        StringBuilder sb = new StringBuilder(nodeId);
+        groups.forEach((prefix, ids) -> sb.append('\n').append(prefix).append('|').append(String.join(",", ids)));
+        return sb.toString();
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        List<String> lines = StrUtil.split(body, '\n');
+        if (lines.isEmpty() || nodeId.equals(lines.get(0))){
+            // 自己发出的消息，本地已经清理过了
+            return;
+        }
+        for (int i = 1; i < lines.size(); i++) {
+            String line = lines.get(i);
+            int sep = line.indexOf('|');
+            String prefix = line.substring(0, sep);
+            for (String id : StrUtil.split(line.substring(sep + 1), ',')) {
+                String key = prefix + id;
+                for (Consumer<String> listener : listeners) {
+                    listener.accept(key);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 全局共用的缓存重建线程池。
+ * 1. 队列有上限，超出后直接丢弃，下一次读到过期数据时会重新提交
+ * 2. 同一个key排队中时不重复提交
+ * 3. 越热的key越先执行
+ * 4. 任务异常会记录日志并计数，不会被吞掉
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            CACHE_REBUILD_THREADS, CACHE_REBUILD_THREADS, 0L, TimeUnit.MILLISECONDS,
+            new PriorityBlockingQueue<>(), ThreadUtil.newNamedThreadFactory("cache-rebuild-", true));
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("cache-schedule-", true));
+
+    /**
+     * 排队中或执行中的key，用于去重
+     */
+    private final Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+    /**
+     * 提交顺序，优先级相同时先提交的先执行
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * 提交一个缓存重建任务
+     * @param key 缓存key，同一个key在执行完之前只会有一个任务
+     * @param priority 优先级，越大越先执行，一般传key的访问热度
+     * @return 是否提交成功，重复或队列已满时返回false
+     */
+    public boolean submit(String key, long priority, Runnable task){
+        if (executor.getQueue().size() >= CACHE_REBUILD_QUEUE_CAPACITY){
+            rejected.increment();
+            return false;
+        }
+        if (!pendingKeys.add(key)){
+            deduplicated.increment();
+            return false;
+        }
+        try {
+            executor.execute(new RebuildTask(key, priority, task));
+        } catch (RuntimeException e) {
+            // 线程池已关闭
+            pendingKeys.remove(key);
+            rejected.increment();
+            return false;
+        }
+        submitted.increment();
+        return true;
+    }
+
+    /**
+     * 立即执行的任务，不去重、不受队列上限限制，优先于所有重建任务，用于有请求在等待结果的场景
+     */
+    public void execute(Runnable task){
+        executor.execute(new RebuildTask(null, Long.MAX_VALUE, task));
+    }
+
+    /**
+     * 延迟执行，用于等待超时等轻量的定时逻辑，耗时的逻辑应该再转交给execute
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit){
+        return scheduler.schedule(task, delay, unit);
+    }
+
+    /**
+     * 固定间隔执行
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long initialDelay, long delay, TimeUnit unit){
+        return scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                // 异常会导致后续不再调度
+                log.error("定时任务执行失败", e);
+            }
+        }, initialDelay, delay, unit);
+    }
+
+    /**
+     * 线程池的运行指标
+     */
+    public Map<String, Object> metrics(){
+        Map<String, Object> map = new LinkedHashMap<>();
+        long done = completed.sum() + failed.sum();
+        map.put("queueDepth", executor.getQueue().size());
+        map.put("active", executor.getActiveCount());
+        map.put("pendingKeys", pendingKeys.size());
+        map.put("submitted", submitted.sum());
+        map.put("deduplicated", deduplicated.sum());
+        map.put("rejected", rejected.sum());
+        map.put("completed", completed.sum());
+        map.put("failed", failed.sum());
+        map.put("avgLatencyMs", done == 0 ? 0 : totalNanos.sum() / done / 1_000_000.0);
+        map.put("maxLatencyMs", maxNanos.get() / 1_000_000.0);
+        return map;
+    }
+
+    @PreDestroy
+    private void shutdown(){
+        scheduler.shutdownNow();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(CACHE_REBUILD_SHUTDOWN_WAIT, TimeUnit.SECONDS)){
+                log.warn("缓存重建线程池关闭超时，丢弃{}个任务", executor.shutdownNow().size());
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class RebuildTask implements Runnable, Comparable<RebuildTask> {
+        private final String key;
+        private final long priority;
+        private final long seq = sequence.incrementAndGet();
+        private final Runnable task;
+
+        RebuildTask(String key, long priority, Runnable task) {
+            this.key = key;
+            this.priority = priority;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long begin = System.nanoTime();
+            try {
+                task.run();
+                completed.increment();
+            } catch (Exception e) {
+                failed.increment();
+                log.error("缓存重建失败, key = {}", key, e);
+            } finally {
+                if (key != null){
+                    pendingKeys.remove(key);
+                }
+                long cost = System.nanoTime() - begin;
+                totalNanos.add(cost);
+                maxNanos.accumulateAndGet(cost, Math::max);
+            }
+        }
+
+        @Override
+        public int compareTo(RebuildTask other) {
+            int c = Long.compare(other.priority, priority);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.hmdp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓存命中统计，分别记录本地缓存和redis两级的命中、未命中次数
+ */
+public class CacheStats {
+    private final LongAdder localHit = new LongAdder();
+    private final LongAdder localMiss = new LongAdder();
+    private final LongAdder redisHit = new LongAdder();
+    private final LongAdder redisMiss = new LongAdder();
+    private final LongAdder bloomReject = new LongAdder();
+
+    public void recordLocalHit(){
+        localHit.increment();
+    }
+
+    public void recordLocalMiss(){
+        localMiss.increment();
+    }
+
+    public void recordRedisHit(){
+        redisHit.increment();
+    }
+
+    public void recordRedisMiss(){
+        redisMiss.increment();
+    }
+
+    public void recordBloomReject(){
+        bloomReject.increment();
+    }
+
+    /**
+     * 当前统计数据的快照
+     */
+    public Map<String, Long> snapshot(){
+        Map<String, Long> map = new LinkedHashMap<>();
+        map.put("localHit", localHit.sum());
+        map.put("localMiss", localMiss.sum());
+        map.put("redisHit", redisHit.sum());
+        map.put("redisMiss", redisMiss.sum());
+        map.put("bloomReject", bloomReject.sum());
+        return map;
+    }
+}
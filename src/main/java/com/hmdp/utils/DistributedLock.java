@@ -0,0 +1,240 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.ThreadUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 基于redis的可重入分布式锁。
+ * 锁是一个hash，field为持有者（节点id + 线程id），value为重入次数，释放时只有持有者能删除；
+ * 不指定租期时由看门狗定期续期，持有者宕机后锁在租期结束时自动释放；
+ * 等待锁的线程订阅释放通知，而不是循环重试
+ */
+@Slf4j
+@Component
+public class DistributedLock {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    private static final DefaultRedisScript<Long> ACQUIRE_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    static {
+        ACQUIRE_SCRIPT = new DefaultRedisScript<>();
+        ACQUIRE_SCRIPT.setLocation(new ClassPathResource("lock_acquire.lua"));
+        ACQUIRE_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("lock_release.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("lock_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+
+    private final String nodeId = UUID.randomUUID().toString(true);
+    /**
+     * 本节点在等待各个锁的线程，锁释放时按等待顺序唤醒一个
+     */
+    private final Map<String, Waiters> waiters = new ConcurrentHashMap<>();
+    /**
+     * 看门狗续期任务，key为 锁 + 持有者
+     */
+    private final Map<String, Renewal> renewals = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService watchdog =
+            Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("lock-watchdog-", true));
+
+    @PostConstruct
+    private void init(){
+        listenerContainer.addMessageListener((message, pattern) -> {
+            Waiters w = waiters.get(new String(message.getBody(), StandardCharsets.UTF_8));
+            if (w != null){
+                w.semaphore.release();
+            }
+        }, new ChannelTopic(LOCK_RELEASE_CHANNEL));
+    }
+
+    @PreDestroy
+    private void destroy(){
+        watchdog.shutdownNow();
+    }
+
+    /**
+     * 尝试获取锁，不等待，由看门狗续期
+     * @return 锁，获取失败返回null
+     */
+    public Handle tryLock(String key){
+        return tryLock(key, 0, -1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 尝试获取锁，最多等待waitTime，由看门狗续期
+     * @return 锁，获取失败返回null
+     */
+    public Handle tryLock(String key, long waitTime, TimeUnit unit){
+        return tryLock(key, waitTime, -1, unit);
+    }
+
+    /**
+     * 尝试获取锁
+     * @param waitTime 最多等待的时间
+     * @param leaseTime 租期，到期自动释放，-1表示由看门狗续期直到释放
+     * @return 锁，获取失败返回null
+     */
+    public Handle tryLock(String key, long waitTime, long leaseTime, TimeUnit unit){
+        String owner = nodeId + ":" + Thread.currentThread().getId();
+        boolean watch = leaseTime < 0;
+        long leaseMillis = watch ? LOCK_WATCHDOG_LEASE : unit.toMillis(leaseTime);
+        long ttl = acquire(key, owner, leaseMillis);
+        if (ttl < 0){
+            return acquired(key, owner, watch);
+        }
+        long deadline = System.currentTimeMillis() + unit.toMillis(waitTime);
+        if (waitTime <= 0){
+            return null;
+        }
+        // 等待锁释放的通知，最多等到锁的租期结束，防止通知丢失
+        Waiters w = waiters.compute(key, (k, v) -> {
+            Waiters result = v == null ? new Waiters() : v;
+            result.count++;
+            return result;
+        });
+        try {
+            while (true){
+                long remain = deadline - System.currentTimeMillis();
+                if (remain <= 0){
+                    return null;
+                }
+                if (!w.semaphore.tryAcquire(Math.min(ttl, remain), TimeUnit.MILLISECONDS)
+                        && System.currentTimeMillis() >= deadline){
+                    return null;
+                }
+                ttl = acquire(key, owner, leaseMillis);
+                if (ttl < 0){
+                    return acquired(key, owner, watch);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            waiters.computeIfPresent(key, (k, v) -> --v.count == 0 ? null : v);
+        }
+    }
+
+    private long acquire(String key, String owner, long leaseMillis){
+        Long ttl = stringRedisTemplate.execute(ACQUIRE_SCRIPT, Collections.singletonList(key),
+                owner, String.valueOf(leaseMillis));
+        // 锁刚好过期时pttl返回-2，按租期重新等待
+        return ttl == null ? leaseMillis : (ttl == -1 ? -1 : Math.max(ttl, 1));
+    }
+
+    private Handle acquired(String key, String owner, boolean watch){
+        if (watch){
+            renewals.compute(key + "|" + owner, (k, renewal) -> {
+                if (renewal == null){
+                    renewal = new Renewal();
+                    renewal.future = watchdog.scheduleAtFixedRate(() -> renew(k, key, owner),
+                            LOCK_WATCHDOG_LEASE / 3, LOCK_WATCHDOG_LEASE / 3, TimeUnit.MILLISECONDS);
+                }
+                renewal.count++;
+                return renewal;
+            });
+        }
+        return new Handle(key, owner, watch);
+    }
+
+    private void renew(String renewalKey, String key, String owner){
+        try {
+            Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(key),
+                    owner, String.valueOf(LOCK_WATCHDOG_LEASE));
+            if (renewed == null || renewed == 0){
+                // 锁已经不在了，停止续期
+                Renewal renewal = renewals.remove(renewalKey);
+                if (renewal != null){
+                    renewal.future.cancel(false);
+                }
+            }
+        } catch (Exception e) {
+            log.warn("锁续期失败, key={}", key, e);
+        }
+    }
+
+    private void release(Handle handle){
+        if (handle.watch){
+            renewals.computeIfPresent(handle.key + "|" + handle.owner, (k, renewal) -> {
+                if (--renewal.count > 0){
+                    return renewal;
+                }
+                renewal.future.cancel(false);
+                return null;
+            });
+        }
+        Long result = stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(handle.key),
+                handle.owner, String.valueOf(LOCK_WATCHDOG_LEASE), LOCK_RELEASE_CHANNEL);
+        if (result != null && result == -1){
+            log.warn("释放锁时已经不是持有者，可能已经超过租期, key={}", handle.key);
+        }
+    }
+
+    /**
+     * 获取到的锁，可以在其它线程释放，支持try-with-resources
+     */
+    public class Handle implements AutoCloseable {
+        private final String key;
+        private final String owner;
+        private final boolean watch;
+        private boolean released;
+
+        private Handle(String key, String owner, boolean watch) {
+            this.key = key;
+            this.owner = owner;
+            this.watch = watch;
+        }
+
+        public synchronized void unlock(){
+            if (released){
+                return;
+            }
+            released = true;
+            release(this);
+        }
+
+        @Override
+        public void close() {
+            unlock();
+        }
+    }
+
+    private static class Waiters {
+        private final Semaphore semaphore = new Semaphore(0, true);
+        private int count;
+    }
+
+    private static class Renewal {
+        private ScheduledFuture<?> future;
+        private int count;
+    }
+}
@@ -0,0 +1,133 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 哈希时间轮。
+ * 一圈有slots个槽，每个槽tickMillis，任务按到期时间落到对应的槽，超过一圈的记录剩余圈数；
+ * 添加任务只是放入队列，由转动的线程放入槽中，槽本身不需要加锁。
+ * 同一个刻度到期的任务一次性交给处理函数，处理函数不能阻塞转动线程太久
+ */
+@Slf4j
+public class HashedTimeWheel<T> {
+    private final long tickMillis;
+    private final int mask;
+    private final List<LinkedList<Entry<T>>> wheel;
+    private final Queue<Entry<T>> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final Consumer<List<T>> expiredHandler;
+    private final ScheduledExecutorService worker;
+    private final long startTime;
+    /**
+     * 已经处理过的刻度，只在转动线程中访问
+     */
+    private long tick;
+
+    /**
+     * @param tickMillis 每个槽的时间跨度
+     * @param slots 槽的数量，向上取整为2的幂
+     * @param expiredHandler 到期任务的处理函数，在转动线程中调用
+     */
+    public HashedTimeWheel(String name, long tickMillis, int slots, Consumer<List<T>> expiredHandler) {
+        int n = Integer.highestOneBit(Math.max(slots - 1, 1)) << 1;
+        this.tickMillis = tickMillis;
+        this.mask = n - 1;
+        this.wheel = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            wheel.add(new LinkedList<>());
+        }
+        this.expiredHandler = expiredHandler;
+        this.startTime = System.currentTimeMillis();
+        this.worker = Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory(name + "-", true));
+        worker.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 添加一个任务，已经过期的任务在下一个刻度处理
+     * @param deadline 到期时间戳ms
+     */
+    public void add(T task, long deadline){
+        pending.add(new Entry<>(task, deadline));
+        size.incrementAndGet();
+    }
+
+    /**
+     * 时间轮中还未到期的任务数
+     */
+    public int size(){
+        return size.get();
+    }
+
+    public void stop(){
+        worker.shutdownNow();
+    }
+
+    /**
+     * 转动到当前时间，调度延迟时一次补上落下的刻度
+     */
+    private void advance(){
+        try {
+            long target = (System.currentTimeMillis() - startTime) / tickMillis;
+            while (tick <= target){
+                transferPending();
+                List<T> expired = expire(wheel.get((int) (tick & mask)));
+                tick++;
+                if (!expired.isEmpty()){
+                    size.addAndGet(-expired.size());
+                    expiredHandler.accept(expired);
+                }
+            }
+        } catch (Exception e) {
+            log.error("时间轮处理到期任务异常", e);
+        }
+    }
+
+    private void transferPending(){
+        Entry<T> entry;
+        while ((entry = pending.poll()) != null){
+            // 已经过期的放到当前刻度
+            long deadlineTick = Math.max((entry.deadline - startTime) / tickMillis, tick);
+            entry.rounds = (deadlineTick - tick) >> Long.numberOfTrailingZeros(mask + 1);
+            wheel.get((int) (deadlineTick & mask)).add(entry);
+        }
+    }
+
+    private List<T> expire(LinkedList<Entry<T>> slot){
+        List<T> expired = new ArrayList<>();
+        Iterator<Entry<T>> it = slot.iterator();
+        while (it.hasNext()){
+            Entry<T> entry = it.next();
+            if (entry.rounds <= 0){
+                it.remove();
+                expired.add(entry.task);
+            } else {
+                entry.rounds--;
+            }
+        }
+        return expired;
+    }
+
+    private static class Entry<T> {
+        private final T task;
+        private final long deadline;
+        private long rounds;
+
+        Entry(T task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+}
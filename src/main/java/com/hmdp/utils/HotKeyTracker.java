@@ -0,0 +1,60 @@
+package com.hmdp.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 统计key的访问热度。
+ * 只跟踪有限数量的key，定期衰减一半，长期不访问的key会被移除
+ */
+public class HotKeyTracker {
+    private final int capacity;
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    public HotKeyTracker(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * 记录一次访问
+     */
+    public void record(String key){
+        LongAdder counter = counters.get(key);
+        if (counter == null){
+            if (counters.size() >= capacity){
+                // 已经跟踪满了，新key等下一次衰减腾出位置
+                return;
+            }
+            counter = counters.computeIfAbsent(key, k -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    /**
+     * @return key当前的热度，没有跟踪的key返回0
+     */
+    public long heat(String key){
+        LongAdder counter = counters.get(key);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * 所有跟踪中的key及其热度
+     */
+    public Map<String, LongAdder> counters(){
+        return counters;
+    }
+
+    /**
+     * 热度减半，减到0的key不再跟踪
+     */
+    public void decay(){
+        counters.entrySet().removeIf(entry -> {
+            LongAdder counter = entry.getValue();
+            long half = counter.sumThenReset() / 2;
+            counter.add(half);
+            return half == 0;
+        });
+    }
+}
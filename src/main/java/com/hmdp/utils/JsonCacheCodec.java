@@ -0,0 +1,57 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+
+/**
+ * JSON格式的编解码，带逻辑过期时间的数据用RedisData包装
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public byte[] encodeWithExpire(Object value, long expireAt) {
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireAt), ZoneId.systemDefault()));
+        redisData.setData(value);
+        return encode(redisData);
+    }
+
+    @Override
+    public long readExpire(byte[] bytes) {
+        // JSON没办法只读取头部，需要完整解析
+        RedisData redisData = decode(bytes, RedisData.class);
+        return redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    @Override
+    public <R> R decodeWithExpire(byte[] bytes, Class<R> type) {
+        RedisData redisData = decode(bytes, RedisData.class);
+        return JSONUtil.toBean((JSONObject) redisData.getData(), type);
+    }
+
+    @Override
+    public byte[] encodeList(List<?> values) {
+        return encode(values);
+    }
+
+    @Override
+    public <R> List<R> decodeList(byte[] bytes, Class<R> type) {
+        return JSONUtil.toList(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+}
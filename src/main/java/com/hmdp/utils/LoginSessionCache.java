@@ -0,0 +1,150 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.Cache;
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 登录token的本地缓存。
+ * 1. 用户信息在本地LRU缓存一小段时间；不存在的token单独缓存在一个更小、更短的LRU中，
+ *    大量随机token只会挤掉其它不存在的token，不影响正常会话的缓存
+ * 2. 续期：每个token一个周期内只登记一次，由后台线程用pipeline批量expire
+ * 3. 登出：删除本地缓存，并通过缓存失效广播通知其它节点
+ */
+@Slf4j
+@Component
+public class LoginSessionCache {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CacheInvalidationBus invalidationBus;
+
+    private final Cache<String, Session> sessions =
+            CacheUtil.newLRUCache(LOGIN_SESSION_LOCAL_SIZE, LOGIN_SESSION_LOCAL_TTL);
+    /**
+     * 不存在的token
+     */
+    private final Cache<String, Boolean> misses =
+            CacheUtil.newLRUCache(LOGIN_SESSION_MISS_SIZE, LOGIN_SESSION_MISS_TTL);
+    /**
+     * 待续期的token
+     */
+    private final Set<String> pendingRefresh = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService flushExecutor =
+            Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("login-session-", true));
+
+    @PostConstruct
+    private void init(){
+        invalidationBus.addListener(key -> {
+            if (key.startsWith(LOGIN_USER_KEY)){
+                sessions.remove(key.substring(LOGIN_USER_KEY.length()));
+            }
+        });
+        flushExecutor.scheduleWithFixedDelay(this::flush,
+                LOGIN_SESSION_FLUSH_INTERVAL, LOGIN_SESSION_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        flushExecutor.shutdown();
+        flush();
+    }
+
+    /**
+     * 查询token对应的用户，并登记续期
+     * @return 用户，token不存在返回null
+     */
+    public UserDTO get(String token){
+        Session session = sessions.get(token, false);
+        if (session == null){
+            if (misses.get(token, false) != null){
+                return null;
+            }
+            session = load(token);
+            if (session == null){
+                return null;
+            }
+        }
+        long now = System.currentTimeMillis();
+        if (now - session.refreshedAt >= LOGIN_SESSION_REFRESH_INTERVAL){
+            session.refreshedAt = now;
+            pendingRefresh.add(token);
+        }
+        return session.user;
+    }
+
+    /**
+     * 登出后清除本节点和其它节点的缓存
+     */
+    public void invalidate(String token){
+        sessions.remove(token);
+        pendingRefresh.remove(token);
+        invalidationBus.publish(LOGIN_USER_KEY + token);
+    }
+
+    private Session load(String token){
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(LOGIN_USER_KEY + token, UserHashCodec.FIELDS);
+        UserDTO user = UserHashCodec.fromValues(values);
+        if (user == null){
+            misses.put(token, Boolean.TRUE);
+            return null;
+        }
+        Session session = new Session(user);
+        sessions.put(token, session);
+        return session;
+    }
+
+    private void flush(){
+        long seconds = TimeUnit.MINUTES.toSeconds(LOGIN_USER_TTL);
+        while (!pendingRefresh.isEmpty()){
+            List<String> batch = new ArrayList<>(LOGIN_SESSION_FLUSH_BATCH);
+            Iterator<String> it = pendingRefresh.iterator();
+            while (it.hasNext() && batch.size() < LOGIN_SESSION_FLUSH_BATCH){
+                batch.add(it.next());
+                it.remove();
+            }
+            try {
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (String token : batch) {
+                        connection.expire((LOGIN_USER_KEY + token).getBytes(StandardCharsets.UTF_8), seconds);
+                    }
+                    return null;
+                });
+            } catch (Exception e) {
+                log.error("批量续期登录token失败, 共{}个token", batch.size(), e);
+            }
+        }
+    }
+
+    private static class Session {
+        private final UserDTO user;
+        /**
+         * 上一次登记续期的时间，新加载的会话立即续期一次
+         */
+        private volatile long refreshedAt;
+
+        Session(UserDTO user) {
+            this.user = user;
+        }
+    }
+}
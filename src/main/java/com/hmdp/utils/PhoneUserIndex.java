@@ -0,0 +1,128 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.Cache;
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.core.collection.CollUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.hmdp.entity.User;
+import com.hmdp.mapper.UserMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 手机号 -> 用户id 的索引，登录时代替按手机号查询整行tb_user。
+ * 1. 本地LRU缓存，手机号和用户id的对应关系不会变化，可以缓存较长时间
+ * 2. 本地没有时直接走phone唯一索引只查询id，一次索引查找，比再绕一次redis更省；新用户注册时直接写入
+ * 登录成功的手机号记录在活跃用户zset中，启动时批量预热最近活跃用户的本地缓存，
+ * zset定期按时间和数量裁剪，不会无限增长
+ */
+@Slf4j
+@Component
+public class PhoneUserIndex {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private UserMapper userMapper;
+
+    private final Cache<String, Long> localIndex =
+            CacheUtil.newLRUCache(USER_PHONE_LOCAL_SIZE, TimeUnit.MINUTES.toMillis(USER_PHONE_LOCAL_TTL));
+    private final ScheduledExecutorService trimScheduler =
+            Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("user-active-trim-", true));
+
+    @PostConstruct
+    private void init(){
+        trimScheduler.scheduleWithFixedDelay(this::trimActive,
+                USER_ACTIVE_TRIM_INTERVAL, USER_ACTIVE_TRIM_INTERVAL, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        trimScheduler.shutdownNow();
+    }
+
+    /**
+     * @return 手机号对应的用户id，用户不存在返回null
+     */
+    public Long get(String phone){
+        Long userId = localIndex.get(phone, false);
+        if (userId != null){
+            return userId;
+        }
+        User user = userMapper.selectOne(new LambdaQueryWrapper<User>()
+                .select(User::getId)
+                .eq(User::getPhone, phone));
+        if (user == null){
+            return null;
+        }
+        localIndex.put(phone, user.getId());
+        return user.getId();
+    }
+
+    public void put(String phone, Long userId){
+        localIndex.put(phone, userId);
+    }
+
+    /**
+     * 索引中的用户已经不存在
+     */
+    public void remove(String phone){
+        localIndex.remove(phone);
+    }
+
+    /**
+     * 记录登录成功的手机号
+     */
+    public void recordActive(String phone){
+        stringRedisTemplate.opsForZSet().add(USER_ACTIVE_KEY, phone, System.currentTimeMillis());
+    }
+
+    /**
+     * 裁剪活跃用户：删除超过时间窗口的，再只保留最近的USER_ACTIVE_MAX_SIZE个。
+     * 多个节点都会执行，两个命令都是幂等的
+     */
+    private void trimActive(){
+        try {
+            long since = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(USER_ACTIVE_DAYS);
+            stringRedisTemplate.opsForZSet().removeRangeByScore(USER_ACTIVE_KEY, 0, since);
+            stringRedisTemplate.opsForZSet().removeRange(USER_ACTIVE_KEY, 0, -USER_ACTIVE_MAX_SIZE - 1);
+        } catch (Exception e) {
+            log.error("裁剪活跃用户失败", e);
+        }
+    }
+
+    /**
+     * 预热最近活跃用户：按批查询数据库，写入本地缓存
+     * @return 预热的用户数
+     */
+    public int preload(){
+        trimActive();
+        Set<String> phones = stringRedisTemplate.opsForZSet().reverseRange(USER_ACTIVE_KEY, 0, USER_PHONE_LOCAL_SIZE - 1);
+        if (phones == null || phones.isEmpty()){
+            return 0;
+        }
+        int count = 0;
+        for (List<String> batch : CollUtil.split(phones, USER_PRELOAD_BATCH_SIZE)) {
+            List<User> users = userMapper.selectList(new LambdaQueryWrapper<User>()
+                    .select(User::getId, User::getPhone)
+                    .in(User::getPhone, batch));
+            for (User user : users) {
+                localIndex.put(user.getPhone(), user.getId());
+            }
+            count += users.size();
+        }
+        return count;
+    }
+}
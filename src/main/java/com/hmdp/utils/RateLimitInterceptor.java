@@ -0,0 +1,60 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 按客户端ip限流，超过限制时返回429，在查询token、访问数据库之前拦截。
+ * 只有直接连接的地址是受信任的代理时才读取X-Forwarded-For、X-Real-IP，否则客户端可以伪造请求头绕过限流
+ */
+public class RateLimitInterceptor implements HandlerInterceptor {
+
+    private RateLimiter rateLimiter;
+    private Set<String> trustedProxies;
+    private String name;
+    private RateLimiter.Rule[] rules;
+
+    public RateLimitInterceptor(RateLimiter rateLimiter, Set<String> trustedProxies, String name, RateLimiter.Rule... rules) {
+        this.rateLimiter = rateLimiter;
+        this.trustedProxies = trustedProxies;
+        this.name = name;
+        this.rules = rules;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 1.获取客户端ip，经过受信任的代理转发时从请求头中获取
+        String ip = clientIp(request);
+        // 2.判断是否超过限制
+        long wait = rateLimiter.tryAcquire(name, ip, rules);
+        if (wait > 0) {
+            // 超过限制，告诉客户端多久之后再试
+            response.setStatus(429);
+            response.setHeader("Retry-After", String.valueOf((wait + 999) / 1000));
+            return false;
+        }
+        // 3.放行
+        return true;
+    }
+
+    private String clientIp(HttpServletRequest request){
+        String remoteAddr = request.getRemoteAddr();
+        if (!trustedProxies.contains(remoteAddr)){
+            return remoteAddr;
+        }
+        // X-Forwarded-For从右往左是离服务端由近到远的地址，跳过受信任的代理，第一个不受信任的就是客户端
+        List<String> forwarded = StrUtil.splitTrim(request.getHeader("X-Forwarded-For"), ',');
+        for (int i = forwarded.size() - 1; i >= 0; i--) {
+            if (!trustedProxies.contains(forwarded.get(i))){
+                return forwarded.get(i);
+            }
+        }
+        String realIp = request.getHeader("X-Real-IP");
+        return StrUtil.isBlank(realIp) ? remoteAddr : realIp.trim();
+    }
+}
@@ -0,0 +1,95 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.Cache;
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.core.util.IdUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 基于redis的滑动窗口限流。
+ * 一次请求可以同时受多个窗口限制（例如1分钟1次、1小时5次），在lua脚本中一起判断和记录；
+ * 被拒绝后在本地记录解除时间，之前的请求直接在本地拒绝，不再访问redis。
+ * redis不可用时放行，限流不影响正常业务
+ */
+@Slf4j
+@Component
+public class RateLimiter {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private static final DefaultRedisScript<Long> LIMIT_SCRIPT;
+    static {
+        LIMIT_SCRIPT = new DefaultRedisScript<>();
+        LIMIT_SCRIPT.setLocation(new ClassPathResource("rate_limit.lua"));
+        LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 被拒绝的 业务:id -> 解除限流的时间
+     */
+    private final Cache<String, Long> rejected = CacheUtil.newLRUCache(LIMIT_LOCAL_SIZE);
+
+    /**
+     * 尝试通过限流
+     * @param name 业务名称，例如 code:phone
+     * @param id 限流对象，例如手机号、ip
+     * @return 0表示放行，否则为还需要等待的毫秒数
+     */
+    public long tryAcquire(String name, String id, Rule... rules){
+        String limitKey = name + ":" + id;
+        long now = System.currentTimeMillis();
+        Long until = rejected.get(limitKey, false);
+        if (until != null && until > now){
+            return until - now;
+        }
+        // 同一个对象的所有窗口用同一个hash tag，保证在同一个slot
+        List<String> keys = new ArrayList<>(rules.length);
+        Object[] args = new Object[rules.length * 2 + 1];
+        args[0] = IdUtil.fastSimpleUUID();
+        for (int i = 0; i < rules.length; i++) {
+            keys.add(LIMIT_KEY_PREFIX + "{" + limitKey + "}:" + rules[i].windowMillis);
+            args[2 * i + 1] = String.valueOf(rules[i].windowMillis);
+            args[2 * i + 2] = String.valueOf(rules[i].limit);
+        }
+        Long wait;
+        try {
+            wait = stringRedisTemplate.execute(LIMIT_SCRIPT, keys, args);
+        } catch (Exception e) {
+            log.warn("限流检查失败，直接放行, key={}", limitKey, e);
+            return 0;
+        }
+        if (wait == null || wait <= 0){
+            return 0;
+        }
+        rejected.put(limitKey, now + wait, wait);
+        return wait;
+    }
+
+    /**
+     * 限流规则：windowMillis时间内最多limit次
+     */
+    public static class Rule {
+        private final long windowMillis;
+        private final int limit;
+
+        private Rule(long windowMillis, int limit) {
+            this.windowMillis = windowMillis;
+            this.limit = limit;
+        }
+
+        public static Rule of(long window, TimeUnit unit, int limit){
+            return new Rule(unit.toMillis(window), limit);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 布隆过滤器，本地一份位图，同时在redis中保存一份供所有节点共享。
+ * 1. 判断只查本地位图，不访问redis
+ * 2. 新增的值写入本地和redis，并通过缓存失效广播通知其它节点写入本地；
+ *    广播丢失时由{@link #sync()}定期从redis合并，在此之前其它节点可能把新值判断为不存在
+ * 3. 初始化完成之前，所有数据都认为可能存在
+ */
+public class RedisBloomFilter {
+    private final StringRedisTemplate stringRedisTemplate;
+    private final CacheInvalidationBus invalidationBus;
+    private final String key;
+    private final byte[] rawKey;
+    /**
+     * 广播新增值时的key前缀
+     */
+    private final String addPrefix;
+    /**
+     * 位图长度
+     */
+    private final long numBits;
+    /**
+     * 哈希函数个数
+     */
+    private final int numHashes;
+    private final AtomicLongArray words;
+    private volatile boolean ready;
+
+    /**
+     * @param key redis中位图的key
+     * @param expectedInsertions 预计的数据量
+     * @param fpp 可接受的误判率
+     */
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate, CacheInvalidationBus invalidationBus,
+                            String key, long expectedInsertions, double fpp) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.invalidationBus = invalidationBus;
+        this.key = key;
+        this.rawKey = key.getBytes(StandardCharsets.UTF_8);
+        this.addPrefix = key + ":add:";
+        long bits = (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        // 按64位对齐，方便和redis的字节位图互相转换
+        this.numBits = Math.max(64, (bits + 63) / 64 * 64);
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+        this.words = new AtomicLongArray((int) (numBits / 64));
+        invalidationBus.addListener(k -> {
+            if (k.startsWith(addPrefix)){
+                addLocal(k.substring(addPrefix.length()));
+            }
+        });
+    }
+
+    /**
+     * 添加一个值，写入本地和redis，并通知其它节点
+     */
+    public void add(Object value){
+        long[] positions = positions(value);
+        for (long position : positions) {
+            setLocal(position);
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long position : positions) {
+                connection.setBit(rawKey, position, true);
+            }
+            return null;
+        });
+        invalidationBus.publish(addPrefix + value);
+    }
+
+    /**
+     * 只写入本地，用于初始化时批量添加，之后通过{@link #publish()}合并到redis
+     */
+    public void addLocal(Object value){
+        for (long position : positions(value)) {
+            setLocal(position);
+        }
+    }
+
+    /**
+     * @return false表示一定不存在，true表示可能存在
+     */
+    public boolean mightContain(Object value){
+        return !ready || containsLocal(positions(value));
+    }
+
+    /**
+     * 把本地位图合并到redis，再把redis中其它节点写入的位合并回本地，完成后开始生效。
+     * 用BITOP OR合并，不会覆盖其它节点同时写入的位
+     */
+    public void publish(){
+        // 临时key与位图用同一个hash tag，集群模式下BITOP的key必须在同一个slot
+        byte[] tmpKey = ("{" + key + "}:tmp:" + System.nanoTime()).getBytes(StandardCharsets.UTF_8);
+        byte[] local = toBytes();
+        byte[] merged = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> {
+            connection.set(tmpKey, local);
+            connection.bitOp(RedisStringCommands.BitOperation.OR, rawKey, rawKey, tmpKey);
+            connection.del(tmpKey);
+            return connection.get(rawKey);
+        });
+        if (merged != null){
+            mergeBytes(merged);
+        }
+        ready = true;
+    }
+
+    /**
+     * 从redis合并其它节点写入的位，补上丢失的广播
+     */
+    public void sync(){
+        if (!ready){
+            return;
+        }
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+        if (bytes != null){
+            mergeBytes(bytes);
+        }
+    }
+
+    public boolean isReady(){
+        return ready;
+    }
+
+    private long[] positions(Object value){
+        byte[] bytes = String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+        // 双重哈希模拟多个哈希函数
+        long h1 = fnv1a64(bytes);
+        long h2 = mix64(h1) | 1;
+        long[] positions = new long[numHashes];
+        for (int i = 0; i < numHashes; i++) {
+            positions[i] = Math.floorMod(h1 + i * h2, numBits);
+        }
+        return positions;
+    }
+
+    private boolean containsLocal(long[] positions){
+        for (long position : positions) {
+            if ((words.get((int) (position >>> 6)) & (1L << (position & 63))) == 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void setLocal(long position){
+        int index = (int) (position >>> 6);
+        long mask = 1L << (position & 63);
+        long old;
+        do {
+            old = words.get(index);
+            if ((old & mask) != 0){
+                return;
+            }
+        } while (!words.compareAndSet(index, old, old | mask));
+    }
+
+    /**
+     * 转为redis位图格式：第n位在第n/8个字节，字节内从高位到低位
+     */
+    private byte[] toBytes(){
+        byte[] bytes = new byte[(int) (numBits / 8)];
+        for (int i = 0; i < words.length(); i++) {
+            long word = words.get(i);
+            if (word == 0){
+                continue;
+            }
+            for (int bit = 0; bit < 64; bit++) {
+                if ((word & (1L << bit)) != 0){
+                    long position = ((long) i << 6) + bit;
+                    bytes[(int) (position >>> 3)] |= (byte) (0x80 >>> (position & 7));
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private void mergeBytes(byte[] bytes){
+        int length = (int) Math.min(bytes.length, numBits / 8);
+        for (int i = 0; i < length; i++) {
+            int b = bytes[i] & 0xFF;
+            if (b == 0){
+                continue;
+            }
+            for (int bit = 0; bit < 8; bit++) {
+                if ((b & (0x80 >>> bit)) != 0){
+                    setLocal(((long) i << 3) + bit);
+                }
+            }
+        }
+    }
+
+    private static long fnv1a64(byte[] bytes){
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return mix64(hash);
+    }
+
+    private static long mix64(long z){
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+}
@@ -5,6 +5,24 @@ public class RedisConstants {
     public static final Long LOGIN_CODE_TTL = 2L;
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final Long LOGIN_USER_TTL = 36000L;
+    public static final Integer LOGIN_SESSION_LOCAL_SIZE = 100000;
+    public static final Long LOGIN_SESSION_LOCAL_TTL = 30000L;
+    public static final Integer LOGIN_SESSION_MISS_SIZE = 10000;
+    public static final Long LOGIN_SESSION_MISS_TTL = 5000L;
+    public static final Long LOGIN_SESSION_REFRESH_INTERVAL = 60000L;
+    public static final Long LOGIN_SESSION_FLUSH_INTERVAL = 1000L;
+    public static final Integer LOGIN_SESSION_FLUSH_BATCH = 500;
+    public static final String LOGIN_REVOKED_KEY = "login:revoked";
+    public static final Long LOGIN_REVOKED_SYNC_INTERVAL = 60000L;
+    public static final String LIMIT_KEY_PREFIX = "limit:";
+    public static final Integer LIMIT_LOCAL_SIZE = 100000;
+    public static final Integer USER_PHONE_LOCAL_SIZE = 200000;
+    public static final Long USER_PHONE_LOCAL_TTL = 60L;
+    public static final String USER_ACTIVE_KEY = "user:active";
+    public static final Long USER_ACTIVE_DAYS = 7L;
+    public static final Long USER_ACTIVE_MAX_SIZE = 1000000L;
+    public static final Long USER_ACTIVE_TRIM_INTERVAL = 60L;
+    public static final Integer USER_PRELOAD_BATCH_SIZE = 500;
 
     public static final String CACHE_SHOP_TYPE_KEY = "cache:type:";
     public static final Long CACHE_SHOP_TYPE_TTL = 36000L;
@@ -13,11 +31,71 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final Integer CACHE_SHOP_LOCAL_SIZE = 1024;
+    public static final Long CACHE_SHOP_LOCAL_TTL = 5L;
+    public static final String CACHE_SHOP_BLOOM_KEY = "bloom:shop";
+    public static final Long CACHE_SHOP_BLOOM_EXPECTED = 1000000L;
+    public static final Double CACHE_SHOP_BLOOM_FPP = 0.01;
+    public static final Integer CACHE_SHOP_BLOOM_PAGE_SIZE = 5000;
+    public static final Long CACHE_BLOOM_SYNC_INTERVAL = 60L;
 
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final Long CACHE_INVALIDATE_INTERVAL = 20L;
+    public static final Integer CACHE_INVALIDATE_BATCH_SIZE = 500;
+
+    public static final Long CACHE_LOAD_WAIT = 2000L;
+    public static final String CACHE_REBUILT_CHANNEL = "cache:rebuilt";
+    public static final Long CACHE_MUTEX_WAIT = 500L;
+    public static final Integer CACHE_STALE_SIZE = 4096;
+
+    public static final Integer CACHE_REBUILD_THREADS = 10;
+    public static final Integer CACHE_REBUILD_QUEUE_CAPACITY = 1000;
+    public static final Long CACHE_REBUILD_SHUTDOWN_WAIT = 10L;
+    public static final Integer CACHE_HOT_KEY_CAPACITY = 10000;
+    public static final Long CACHE_HOT_KEY_DECAY_INTERVAL = 60L;
+
+    public static final Integer CACHE_WARMUP_PAGE_SIZE = 500;
+    public static final Integer CACHE_WARMUP_THREADS = 4;
+    public static final Double CACHE_WARMUP_READY_COVERAGE = 0.9;
+    public static final Long CACHE_WARMUP_READY_TIMEOUT = 120L;
+
+    public static final String LOCK_KEY_PREFIX = "lock:";
+    public static final String LOCK_RELEASE_CHANNEL = "lock:released";
+    public static final Long LOCK_WATCHDOG_LEASE = 30000L;
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
+    public static final String ID_WORKER_CURSOR_KEY = "icr:worker";
+    public static final String ID_WORKER_KEY = "icr:worker:";
+    public static final Long ID_WORKER_LEASE_TTL = 60000L;
+
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_ORDER_STREAM = "stream:orders";
+    public static final String SECKILL_ORDER_GROUP = "order-group";
+    public static final Integer SECKILL_ORDER_BATCH_SIZE = 200;
+    public static final Long SECKILL_ORDER_BLOCK = 2000L;
+    public static final Long SECKILL_ORDER_RETRY_INTERVAL = 1000L;
+    public static final Long SECKILL_ORDER_LOCK_WAIT = 1000L;
+    public static final Integer SECKILL_LOCAL_LOCK_STRIPES = 4096;
+    public static final Integer SECKILL_IDEMPOTENT_SIZE = 100000;
+    public static final Long SECKILL_IDEMPOTENT_TTL = 10L;
+    public static final String SECKILL_BUCKETS_KEY = "seckill:buckets:";
+    public static final Long SECKILL_BUCKETS_LOCAL_TTL = 60L;
+    public static final Long SECKILL_BUCKET_REBALANCE_INTERVAL = 500L;
+    public static final Integer SECKILL_BUCKET_REBALANCE_THRESHOLD = 10;
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final Integer SECKILL_WINDOW_LOCAL_SIZE = 1024;
+    public static final Long SECKILL_WINDOW_LOCAL_TTL = 60L;
+    public static final String SECKILL_ORDER_TIMEOUT_KEY = "seckill:order:timeout";
+    public static final Long SECKILL_ORDER_PAY_TIMEOUT = 15L;
+    public static final Long SECKILL_TIMEOUT_TICK = 1000L;
+    public static final Integer SECKILL_TIMEOUT_SLOTS = 1024;
+    public static final Integer SECKILL_TIMEOUT_BATCH_SIZE = 200;
+    public static final Long SECKILL_TIMEOUT_SWEEP_INTERVAL = 60000L;
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
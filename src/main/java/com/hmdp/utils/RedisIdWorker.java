@@ -1,17 +1,52 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.ThreadUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 全局ID生成器，ID = 时间戳(秒) << 32 | 低32位。
+ * REDIS模式：低32位是从redis按天申请的序列号；
+ * SNOWFLAKE模式：redis不可用时自动切换，低32位是 1位标记 | 10位机器id | 21位序列号，
+ * 标记位保证与REDIS模式的ID不重复，redis恢复后自动切回。
+ * 机器id在redis中独占租约并定期续期，申请不到时不能使用SNOWFLAKE模式，redis不可用时直接失败
+ */
+@Slf4j
 @Component
 public class RedisIdWorker {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    /**
+     * 配置的机器id，小于0时启动时从redis申请。配置的id同样需要租约，已被其它节点持有时启动失败
+     */
+    @Value("${hmdp.id.worker-id:-1}")
+    private long configuredWorkerId;
     /**
      * 开始时间戳
      */
@@ -20,6 +55,169 @@ public class RedisIdWorker {
      * 序列化位数
      */
     private static final int COUNT_BITS = 32;
+    /**
+     * 每次从redis申请的号段大小
+     */
+    private static final long SEGMENT_SIZE = 1000;
+    /**
+     * 当前号段剩余不足这个比例时，异步申请下一个号段
+     */
+    private static final double SEGMENT_LOW_WATER = 0.2;
+    private static final long SECONDS_PER_DAY = 86400;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    private static final DefaultRedisScript<Long> WORKER_LEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> WORKER_RELEASE_SCRIPT;
+    static {
+        WORKER_LEASE_SCRIPT = new DefaultRedisScript<>();
+        WORKER_LEASE_SCRIPT.setLocation(new ClassPathResource("worker_lease.lua"));
+        WORKER_LEASE_SCRIPT.setResultType(Long.class);
+        WORKER_RELEASE_SCRIPT = new DefaultRedisScript<>();
+        WORKER_RELEASE_SCRIPT.setLocation(new ClassPathResource("worker_release.lua"));
+        WORKER_RELEASE_SCRIPT.setResultType(Long.class);
+    }
+    /**
+     * 申请号段的最长等待时间，超时后切换到SNOWFLAKE模式
+     */
+    private static final long LEASE_TIMEOUT = 200;
+    /**
+     * SNOWFLAKE模式下检查redis是否恢复的间隔
+     */
+    private static final long RECOVER_INTERVAL = 5;
+
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 21;
+    private static final long SNOWFLAKE_FLAG = 1L << (WORKER_BITS + SEQUENCE_BITS);
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+    /**
+     * 时钟回拨超过这个秒数时打印告警，ID仍然沿用上一次的时间戳保证递增
+     */
+    private static final long MAX_BACKWARD_SECONDS = 5;
+
+    public enum Mode {
+        REDIS, SNOWFLAKE
+    }
+
+    private volatile Mode mode = Mode.REDIS;
+    /**
+     * 租约的持有者
+     */
+    private final String nodeId = UUID.randomUUID().toString(true);
+    /**
+     * 持有租约的机器id，没有时为-1
+     */
+    private volatile long workerId = -1;
+    /**
+     * SNOWFLAKE模式的状态：时间戳 << 21 | 序列号
+     */
+    private final AtomicLong snowflakeState = new AtomicLong();
+    private final AtomicBoolean recovering = new AtomicBoolean();
+    private final ScheduledExecutorService recoverScheduler =
+            Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("id-recover-", true));
+
+    /**
+     * 各业务当前使用的号段
+     */
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    private final ExecutorService prefetchExecutor =
+            Executors.newSingleThreadExecutor(ThreadUtil.newNamedThreadFactory("id-segment-", true));
+
+    @PostConstruct
+    private void init(){
+        if (configuredWorkerId >= 0){
+            long id = configuredWorkerId & MAX_WORKER_ID;
+            boolean leased;
+            try {
+                leased = leaseWorker(id);
+            } catch (Exception e) {
+                // redis不可用时其它节点也申请不到，先使用配置的id，续期时再占用租约
+                log.warn("redis不可用，无法确认机器id{}是否被其它节点使用", id, e);
+                leased = true;
+            }
+            if (!leased){
+                throw new IllegalStateException("机器id " + id + " 已被其它节点使用，请检查hmdp.id.worker-id");
+            }
+            workerId = id;
+        } else {
+            try {
+                acquireWorker();
+            } catch (Exception e) {
+                log.warn("从redis申请机器id失败，申请到之前redis不可用时无法生成ID", e);
+            }
+        }
+        log.info("ID生成器机器id: {}", workerId);
+        recoverScheduler.scheduleWithFixedDelay(this::tryRecover, RECOVER_INTERVAL, RECOVER_INTERVAL, TimeUnit.SECONDS);
+        recoverScheduler.scheduleWithFixedDelay(this::renewWorker,
+                ID_WORKER_LEASE_TTL / 3, ID_WORKER_LEASE_TTL / 3, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        recoverScheduler.shutdownNow();
+        prefetchExecutor.shutdownNow();
+        long id = workerId;
+        if (id >= 0){
+            try {
+                stringRedisTemplate.execute(WORKER_RELEASE_SCRIPT, Collections.singletonList(ID_WORKER_KEY + id), nodeId);
+            } catch (Exception e) {
+                log.warn("释放机器id{}失败，等待租约过期", id, e);
+            }
+        }
+    }
+
+    /**
+     * 从上次分配的位置开始依次尝试，占用第一个没有租约的机器id，全部被占用时不设置
+     */
+    private void acquireWorker(){
+        Long cursor = stringRedisTemplate.opsForValue().increment(ID_WORKER_CURSOR_KEY);
+        long start = cursor == null ? 0 : cursor - 1;
+        for (long i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (start + i) & MAX_WORKER_ID;
+            if (leaseWorker(id)){
+                workerId = id;
+                return;
+            }
+        }
+        log.error("{}个机器id都已被占用，redis不可用时无法生成ID", MAX_WORKER_ID + 1);
+    }
+
+    private boolean leaseWorker(long id){
+        Long r = stringRedisTemplate.execute(WORKER_LEASE_SCRIPT,
+                Collections.singletonList(ID_WORKER_KEY + id), nodeId, String.valueOf(ID_WORKER_LEASE_TTL));
+        return r != null && r == 1;
+    }
+
+    /**
+     * 续期机器id的租约，租约被其它节点占用时停止使用；还没有机器id时重新申请
+     */
+    private void renewWorker(){
+        long id = workerId;
+        try {
+            if (id >= 0){
+                if (!leaseWorker(id)){
+                    workerId = -1;
+                    log.error("机器id{}的租约已被其它节点占用，停止使用", id);
+                }
+            } else if (configuredWorkerId < 0){
+                acquireWorker();
+                log.info("ID生成器机器id: {}", workerId);
+            }
+        } catch (Exception e) {
+            // redis不可用时其它节点也申请不到这个id，继续使用，恢复后再续期
+            log.debug("续期机器id失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 当前的生成模式
+     */
+    public Mode getMode(){
+        return mode;
+    }
+
+    public long getWorkerId(){
+        return workerId;
+    }
 
     /**
      * 生成分布式ID
@@ -28,15 +226,214 @@ public class RedisIdWorker {
      */
     public long nextId(String keyPrefix){
         // 1、生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        long nowSecond = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
-        // 2、生成序列号
-        // 以当天的时间戳为key，防止一直自增下去导致超时，这样每天的极限都是 2^{31}
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        Long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
-        // 3、拼接并返回
-        return timestamp << COUNT_BITS | count;
+        if (mode == Mode.REDIS){
+            try {
+                // 2、生成序列号
+                // 序列号按天从redis的 icr:业务:日期 申请，一次申请一段，在本地分配
+                long count = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(nowSecond / SECONDS_PER_DAY);
+                // 3、拼接并返回
+                return timestamp << COUNT_BITS | count;
+            } catch (Exception e) {
+                if (workerId < 0){
+                    throw new IllegalStateException("redis申请号段失败，并且没有机器id，无法生成ID", e);
+                }
+                if (mode == Mode.REDIS){
+                    mode = Mode.SNOWFLAKE;
+                    log.error("redis申请号段失败，ID生成切换到SNOWFLAKE模式", e);
+                }
+            }
+        }
+        long id = workerId;
+        if (id < 0){
+            throw new IllegalStateException("没有机器id，无法使用SNOWFLAKE模式生成ID");
+        }
+        return nextSnowflakeId(timestamp, id);
+    }
+
+    /**
+     * ID的生成时间。生成ID时把本地时间当作UTC计算秒数，这里按同样的方式换算回来
+     * @return 时间戳ms
+     */
+    public static long timestampOf(long id){
+        long second = (id >>> COUNT_BITS) + BEGIN_TIMESTAMP;
+        return LocalDateTime.ofEpochSecond(second, 0, ZoneOffset.UTC)
+                .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 不依赖redis生成ID：时间戳取当前时间和上一次时间戳中较大的，同一秒内序列号用完时借用下一秒，
+     * 时钟回拨时继续使用上一次的时间戳，保证ID递增且不重复
+     */
+    private long nextSnowflakeId(long timestamp, long workerId){
+        while (true){
+            long state = snowflakeState.get();
+            long lastTimestamp = state >>> SEQUENCE_BITS;
+            long sequence = state & MAX_SEQUENCE;
+            long next;
+            if (timestamp > lastTimestamp){
+                next = timestamp << SEQUENCE_BITS;
+            } else if (sequence < MAX_SEQUENCE){
+                next = state + 1;
+            } else {
+                next = (lastTimestamp + 1) << SEQUENCE_BITS;
+            }
+            if (snowflakeState.compareAndSet(state, next)){
+                if (lastTimestamp - timestamp > MAX_BACKWARD_SECONDS && sequence == 0){
+                    log.warn("时钟回拨{}秒", lastTimestamp - timestamp);
+                }
+                long ts = next >>> SEQUENCE_BITS;
+                return ts << COUNT_BITS | SNOWFLAKE_FLAG | workerId << SEQUENCE_BITS | (next & MAX_SEQUENCE);
+            }
+        }
+    }
+
+    /**
+     * SNOWFLAKE模式下定期尝试访问redis，成功后切回REDIS模式
+     */
+    private void tryRecover(){
+        if (mode == Mode.REDIS || !recovering.compareAndSet(false, true)){
+            return;
+        }
+        try {
+            CompletableFuture.supplyAsync(() -> stringRedisTemplate.hasKey(ID_WORKER_CURSOR_KEY), prefetchExecutor)
+                    .get(LEASE_TIMEOUT, TimeUnit.MILLISECONDS);
+            // 丢弃旧号段，重新申请
+            buffers.clear();
+            mode = Mode.REDIS;
+            log.info("redis已恢复，ID生成切换回REDIS模式");
+        } catch (Exception e) {
+            log.debug("redis仍不可用: {}", e.getMessage());
+        } finally {
+            recovering.set(false);
+        }
+    }
+
+    /**
+     * 从redis申请一个号段，INCRBY返回的是号段的最后一个值
+     */
+    private Segment lease(String keyPrefix, long epochDay){
+        String date = LocalDate.ofEpochDay(epochDay).format(DATE_FORMATTER);
+        Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, SEGMENT_SIZE);
+        if (end == null){
+            throw new IllegalStateException("申请号段失败, keyPrefix=" + keyPrefix);
+        }
+        return new Segment(epochDay, end - SEGMENT_SIZE + 1, end);
+    }
+
+    /**
+     * 号段，[cursor, end]之间的序列号可以在本地直接分配
+     */
+    private static class Segment {
+        private final long epochDay;
+        private final AtomicLong cursor;
+        private final long end;
+
+        Segment(long epochDay, long begin, long end) {
+            this.epochDay = epochDay;
+            this.cursor = new AtomicLong(begin);
+            this.end = end;
+        }
+
+        long remaining(){
+            return end - cursor.get() + 1;
+        }
+    }
+
+    /**
+     * 一个业务的号段缓冲：当前号段用CAS分配，剩余不多时后台预取下一段，用完后切换。
+     * 号段只在申请的那一天使用，跨天后作废，保证同一天内的序列号不重复。
+     * 切换时只在锁内取得申请号段的future，等待redis在锁外进行，并且有超时
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile CompletableFuture<Segment> next;
+        /**
+         * 正在切换的号段，同时切换的线程等待同一个申请
+         */
+        private CompletableFuture<Segment> switching;
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long next(long epochDay){
+            while (true){
+                Segment segment = current;
+                if (segment != null && segment.epochDay == epochDay){
+                    long value = segment.cursor.getAndIncrement();
+                    if (value <= segment.end){
+                        if (segment.end - value < SEGMENT_SIZE * SEGMENT_LOW_WATER){
+                            prefetch(segment);
+                        }
+                        return value;
+                    }
+                }
+                // 号段用完或者已经跨天，切换到下一个号段
+                switchSegment(segment, epochDay);
+            }
+        }
+
+        private void prefetch(Segment segment){
+            if (next != null){
+                return;
+            }
+            synchronized (this){
+                if (next == null && current == segment){
+                    long epochDay = segment.epochDay;
+                    next = CompletableFuture.supplyAsync(() -> lease(keyPrefix, epochDay), prefetchExecutor);
+                }
+            }
+        }
+
+        private void switchSegment(Segment used, long epochDay){
+            CompletableFuture<Segment> future;
+            synchronized (this){
+                if (current != used){
+                    // 其它线程已经切换过了
+                    return;
+                }
+                if (mode != Mode.REDIS){
+                    // 其它线程已经发现redis不可用
+                    throw new IllegalStateException("redis不可用");
+                }
+                if (switching == null){
+                    // 优先使用预取的号段
+                    switching = next != null ? next
+                            : CompletableFuture.supplyAsync(() -> lease(keyPrefix, epochDay), prefetchExecutor);
+                    next = null;
+                }
+                future = switching;
+            }
+            Segment segment;
+            try {
+                // 限制等待时间，redis变慢时尽快切换模式，而不是阻塞下单
+                segment = future.get(LEASE_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                synchronized (this){
+                    if (switching == future){
+                        switching = null;
+                    }
+                }
+                throw new IllegalStateException("申请号段失败, keyPrefix=" + keyPrefix, e);
+            }
+            synchronized (this){
+                if (switching == future){
+                    switching = null;
+                }
+                if (current != used){
+                    return;
+                }
+                if (segment.epochDay == epochDay){
+                    current = segment;
+                } else {
+                    // 预取的号段已经跨天作废，重新申请，调用方循环时等待
+                    switching = CompletableFuture.supplyAsync(() -> lease(keyPrefix, epochDay), prefetchExecutor);
+                }
+            }
+        }
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,138 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.Cache;
+import cn.hutool.cache.CacheUtil;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀请求的本地前置检查，在访问redis之前拦截大部分无效请求。
+ * 1. 活动时间：秒杀开始、结束时间在本地缓存，未开始和已结束的请求直接返回
+ * 2. 售罄标记：redis返回库存不足后在本地标记，并通过发布订阅通知其它节点，
+ *    之后的请求不再访问redis，库存归还时清除标记
+ */
+@Slf4j
+@Component
+public class SeckillGuard {
+    private static final String SOLD_OUT = "soldout:";
+    private static final String RESTOCK = "restock:";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    /**
+     * 已售罄的优惠券
+     */
+    private final Set<Long> soldOut = ConcurrentHashMap.newKeySet();
+    /**
+     * 秒杀券的活动时间，不存在的优惠券也缓存，避免无效id反复查询数据库
+     */
+    private final Cache<Long, SeckillWindow> windows =
+            CacheUtil.newLRUCache(SECKILL_WINDOW_LOCAL_SIZE, TimeUnit.SECONDS.toMillis(SECKILL_WINDOW_LOCAL_TTL));
+
+    @PostConstruct
+    private void init(){
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            if (body.startsWith(SOLD_OUT)){
+                soldOut.add(Long.valueOf(body.substring(SOLD_OUT.length())));
+            } else if (body.startsWith(RESTOCK)){
+                soldOut.remove(Long.valueOf(body.substring(RESTOCK.length())));
+            }
+        }, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 本地检查是否可以参与秒杀
+     * @return 不能参与的原因，可以参与时返回null
+     */
+    public String check(Long voucherId){
+        if (soldOut.contains(voucherId)){
+            return "库存不足";
+        }
+        SeckillWindow window = windows.get(voucherId, () -> loadWindow(voucherId));
+        if (window.beginTime == null){
+            return "优惠券不存在";
+        }
+        LocalDateTime now = LocalDateTime.now();
+        if (now.isBefore(window.beginTime)){
+            return "秒杀尚未开始";
+        }
+        if (now.isAfter(window.endTime)){
+            return "秒杀已经结束";
+        }
+        return null;
+    }
+
+    /**
+     * 秒杀是否已经结束，优惠券不存在也算结束
+     */
+    public boolean hasEnded(Long voucherId){
+        SeckillWindow window = windows.get(voucherId, () -> loadWindow(voucherId));
+        return window.endTime == null || LocalDateTime.now().isAfter(window.endTime);
+    }
+
+    public boolean isSoldOut(Long voucherId){
+        return soldOut.contains(voucherId);
+    }
+
+    /**
+     * 标记售罄并通知所有节点
+     */
+    public void markSoldOut(Long voucherId){
+        if (soldOut.add(voucherId)){
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + voucherId);
+        }
+    }
+
+    /**
+     * 库存归还后清除售罄标记并通知所有节点
+     */
+    public void clearSoldOut(Long voucherId){
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, RESTOCK + voucherId);
+    }
+
+    /**
+     * 活动时间有变化时清除本地缓存
+     */
+    public void evictWindow(Long voucherId){
+        windows.remove(voucherId);
+    }
+
+    private SeckillWindow loadWindow(Long voucherId){
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        return voucher == null
+                ? new SeckillWindow(null, null)
+                : new SeckillWindow(voucher.getBeginTime(), voucher.getEndTime());
+    }
+
+    private static class SeckillWindow {
+        private final LocalDateTime beginTime;
+        private final LocalDateTime endTime;
+
+        SeckillWindow(LocalDateTime beginTime, LocalDateTime endTime) {
+            this.beginTime = beginTime;
+            this.endTime = endTime;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.collection.CollUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.baomidou.mybatisplus.core.conditions.update.LambdaUpdateWrapper;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀订单超时未支付自动取消。
+ * 订单落库后按到期时间写入redis的zset，同时放入本地时间轮，到期时批量取消并归还库存；
+ * 启动时从zset重建时间轮，另外定期扫描zset中早已过期的订单，接管宕机节点上的订单。
+ * 取消时先在数据库中把未支付的订单改为已取消并归还库存，再用脚本归还redis库存，
+ * 订单从zset中删除成功才归还，重复取消、多个节点同时取消都只会归还一次。
+ * 取消后用户仍然保留在已下单用户中，与数据库的一人一单唯一索引保持一致
+ */
+@Slf4j
+@Component
+public class SeckillOrderTimeout {
+    private static final int STATUS_UNPAID = 1;
+    private static final int STATUS_CANCELLED = 4;
+    /**
+     * 启动时每次从zset读取的订单数
+     */
+    private static final int RELOAD_PAGE_SIZE = 5000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private TransactionTemplate transactionTemplate;
+    @Resource
+    private SeckillStockBuckets seckillStockBuckets;
+    @Resource
+    private SeckillGuard seckillGuard;
+
+    private static final DefaultRedisScript<Long> RESTORE_SCRIPT;
+    static {
+        RESTORE_SCRIPT = new DefaultRedisScript<>();
+        RESTORE_SCRIPT.setLocation(new ClassPathResource("order_restore.lua"));
+        RESTORE_SCRIPT.setResultType(Long.class);
+    }
+
+    private HashedTimeWheel<Long> wheel;
+    /**
+     * 取消订单的线程，时间轮线程只负责分批提交
+     */
+    private final ExecutorService cancelExecutor =
+            Executors.newSingleThreadExecutor(ThreadUtil.newNamedThreadFactory("seckill-timeout-", true));
+    private final ScheduledExecutorService sweeper =
+            Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("seckill-timeout-sweep-", true));
+
+    @PostConstruct
+    private void init(){
+        wheel = new HashedTimeWheel<>("seckill-timewheel", SECKILL_TIMEOUT_TICK, SECKILL_TIMEOUT_SLOTS, this::submit);
+        // 异步重建，不阻塞启动
+        cancelExecutor.submit(this::reload);
+        sweeper.scheduleWithFixedDelay(this::sweep,
+                SECKILL_TIMEOUT_SWEEP_INTERVAL, SECKILL_TIMEOUT_SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        wheel.stop();
+        sweeper.shutdownNow();
+        cancelExecutor.shutdown();
+    }
+
+    /**
+     * 订单的支付截止时间，由订单id中的下单时间计算，重复消费时结果不变
+     */
+    public static long deadlineOf(long orderId){
+        return RedisIdWorker.timestampOf(orderId) + TimeUnit.MINUTES.toMillis(SECKILL_ORDER_PAY_TIMEOUT);
+    }
+
+    /**
+     * 订单落库后开始计时
+     */
+    public void track(List<VoucherOrder> orders){
+        Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>(orders.size() * 4 / 3 + 1);
+        for (VoucherOrder order : orders) {
+            tuples.add(new DefaultTypedTuple<>(order.getId().toString(), (double) deadlineOf(order.getId())));
+        }
+        stringRedisTemplate.opsForZSet().add(SECKILL_ORDER_TIMEOUT_KEY, tuples);
+        for (VoucherOrder order : orders) {
+            wheel.add(order.getId(), deadlineOf(order.getId()));
+        }
+    }
+
+    /**
+     * 时间轮中等待超时的订单数
+     */
+    public int pending(){
+        return wheel.size();
+    }
+
+    private void submit(List<Long> orderIds){
+        for (List<Long> batch : CollUtil.split(orderIds, SECKILL_TIMEOUT_BATCH_SIZE)) {
+            cancelExecutor.submit(() -> cancel(batch));
+        }
+    }
+
+    /**
+     * 按分数分页读取zset重建时间轮，分数相同的订单用偏移量翻页
+     */
+    private void reload(){
+        long begin = System.currentTimeMillis();
+        double min = 0;
+        long offset = 0;
+        int count = 0;
+        try {
+            while (true){
+                Set<ZSetOperations.TypedTuple<String>> page = stringRedisTemplate.opsForZSet()
+                        .rangeByScoreWithScores(SECKILL_ORDER_TIMEOUT_KEY, min, Double.MAX_VALUE, offset, RELOAD_PAGE_SIZE);
+                if (page == null || page.isEmpty()){
+                    break;
+                }
+                for (ZSetOperations.TypedTuple<String> tuple : page) {
+                    double score = tuple.getScore() == null ? 0 : tuple.getScore();
+                    wheel.add(Long.valueOf(tuple.getValue()), (long) score);
+                    if (score == min){
+                        offset++;
+                    } else {
+                        min = score;
+                        offset = 1;
+                    }
+                }
+                count += page.size();
+                if (page.size() < RELOAD_PAGE_SIZE){
+                    break;
+                }
+            }
+            log.info("超时订单时间轮重建完成, 共{}个订单, 耗时{}ms", count, System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            // 没有加载到的订单由定期扫描处理
+            log.error("超时订单时间轮重建失败, 已加载{}个订单", count, e);
+        }
+    }
+
+    /**
+     * 扫描已经过期一个扫描周期以上还没有处理的订单
+     */
+    private void sweep(){
+        long max = System.currentTimeMillis() - SECKILL_TIMEOUT_SWEEP_INTERVAL;
+        try {
+            while (true){
+                Set<String> overdue = stringRedisTemplate.opsForZSet()
+                        .rangeByScore(SECKILL_ORDER_TIMEOUT_KEY, 0, max, 0, SECKILL_TIMEOUT_BATCH_SIZE);
+                if (overdue == null || overdue.isEmpty()){
+                    return;
+                }
+                // 处理完的订单会从zset中删除，下一次仍然从头读取
+                if (!cancel(overdue.stream().map(Long::valueOf).collect(Collectors.toList()))
+                        || overdue.size() < SECKILL_TIMEOUT_BATCH_SIZE){
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            log.error("扫描超时订单异常", e);
+        }
+    }
+
+    /**
+     * 取消一批超时的订单
+     * @return 是否处理成功，失败的订单留在zset中等待下次扫描
+     */
+    private boolean cancel(List<Long> orderIds){
+        try {
+            // 1. 数据库中取消未支付的订单并归还库存，加行锁防止与支付同时进行
+            transactionTemplate.executeWithoutResult(status -> {
+                List<VoucherOrder> unpaid = voucherOrderMapper.selectList(new LambdaQueryWrapper<VoucherOrder>()
+                        .select(VoucherOrder::getId, VoucherOrder::getVoucherId)
+                        .in(VoucherOrder::getId, orderIds)
+                        .eq(VoucherOrder::getStatus, STATUS_UNPAID)
+                        .last("for update"));
+                if (unpaid.isEmpty()){
+                    return;
+                }
+                voucherOrderMapper.update(null, new LambdaUpdateWrapper<VoucherOrder>()
+                        .set(VoucherOrder::getStatus, STATUS_CANCELLED)
+                        .in(VoucherOrder::getId, unpaid.stream().map(VoucherOrder::getId).collect(Collectors.toList())));
+                Map<Long, Long> counts = unpaid.stream()
+                        .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+                counts.forEach((voucherId, count) -> seckillVoucherService.update()
+                        .setSql("stock = stock + " + count)
+                        .eq("voucher_id", voucherId)
+                        .update());
+            });
+            // 2. 已取消的订单归还redis库存，包括上次取消后没来得及归还的
+            List<VoucherOrder> cancelled = voucherOrderMapper.selectList(new LambdaQueryWrapper<VoucherOrder>()
+                    .select(VoucherOrder::getId, VoucherOrder::getUserId, VoucherOrder::getVoucherId)
+                    .in(VoucherOrder::getId, orderIds)
+                    .eq(VoucherOrder::getStatus, STATUS_CANCELLED));
+            restore(cancelled);
+            // 3. 其余的订单已经支付、或者是被忽略的重复订单，不再计时
+            Set<Long> done = cancelled.stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+            Object[] rest = orderIds.stream().filter(id -> !done.contains(id)).map(String::valueOf).toArray();
+            if (rest.length > 0){
+                stringRedisTemplate.opsForZSet().remove(SECKILL_ORDER_TIMEOUT_KEY, rest);
+            }
+            return true;
+        } catch (Exception e) {
+            log.error("取消超时订单失败, orderIds={}", orderIds, e);
+            return false;
+        }
+    }
+
+    private void restore(List<VoucherOrder> orders){
+        if (orders.isEmpty()){
+            return;
+        }
+        List<String> keys = new ArrayList<>(orders.size() + 1);
+        keys.add(SECKILL_ORDER_TIMEOUT_KEY);
+        String[] args = new String[orders.size()];
+        for (int i = 0; i < orders.size(); i++) {
+            VoucherOrder order = orders.get(i);
+            Long voucherId = order.getVoucherId();
+            int bucketCount = seckillStockBuckets.bucketCount(voucherId);
+            // 分桶模式下放回用户所在的桶
+            keys.add(bucketCount > 1
+                    ? SeckillStockBuckets.stockKey(voucherId, SeckillStockBuckets.bucketOf(order.getUserId(), bucketCount))
+                    : SECKILL_STOCK_KEY + voucherId);
+            args[i] = order.getId().toString();
+        }
+        Long restored = stringRedisTemplate.execute(RESTORE_SCRIPT, keys, (Object[]) args);
+        if (restored != null && restored > 0){
+            orders.stream().map(VoucherOrder::getVoucherId).distinct().forEach(seckillGuard::clearSoldOut);
+            log.info("取消超时订单{}个，已归还库存", restored);
+        }
+    }
+}
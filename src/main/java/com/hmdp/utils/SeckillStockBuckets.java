@@ -0,0 +1,289 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.TimedCache;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存分桶。
+ * 超热门的优惠券把库存拆分到多个桶，每个桶的库存和已下单用户用同一个hash tag，
+ * 不同的桶分布在不同的slot上；用户按id固定落在一个桶，保证一人一单，
+ * 自己的桶没有库存时再到其它桶扣减。快售罄时由后台任务在桶之间两两迁移，把剩余库存重新平均分配
+ */
+@Slf4j
+@Component
+public class SeckillStockBuckets {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private DistributedLock distributedLock;
+    @Resource
+    private SeckillGuard seckillGuard;
+
+    private static final DefaultRedisScript<Long> BUCKET_SCRIPT;
+    private static final DefaultRedisScript<Long> TAKE_SCRIPT;
+    static {
+        BUCKET_SCRIPT = new DefaultRedisScript<>();
+        BUCKET_SCRIPT.setLocation(new ClassPathResource("seckill_bucket.lua"));
+        BUCKET_SCRIPT.setResultType(Long.class);
+        TAKE_SCRIPT = new DefaultRedisScript<>();
+        TAKE_SCRIPT.setLocation(new ClassPathResource("stock_take.lua"));
+        TAKE_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 优惠券的分桶数，0表示没有分桶
+     */
+    private final TimedCache<Long, Integer> bucketCounts =
+            CacheUtil.newTimedCache(TimeUnit.SECONDS.toMillis(SECKILL_BUCKETS_LOCAL_TTL));
+    /**
+     * 本节点见过的分桶优惠券，需要定期检查是否迁移库存
+     */
+    private final Map<Long, Integer> bucketedVouchers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService rebalancer =
+            Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("seckill-rebalance-", true));
+
+    @PostConstruct
+    private void init(){
+        rebalancer.scheduleWithFixedDelay(this::rebalanceAll,
+                SECKILL_BUCKET_REBALANCE_INTERVAL, SECKILL_BUCKET_REBALANCE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        rebalancer.shutdownNow();
+    }
+
+    public static String stockKey(Long voucherId, int bucket){
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + bucket + "}";
+    }
+
+    public static String orderKey(Long voucherId, int bucket){
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + bucket + "}";
+    }
+
+    /**
+     * 用户所在的桶
+     */
+    public static int bucketOf(Long userId, int bucketCount){
+        return (int) Math.floorMod(userId * 0x9E3779B97F4A7C15L >>> 32, (long) bucketCount);
+    }
+
+    /**
+     * 把库存平均分配到各个桶
+     */
+    public void init(Long voucherId, int stock, int bucketCount){
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < bucketCount; i++) {
+                int share = stock / bucketCount + (i < stock % bucketCount ? 1 : 0);
+                connection.set(bytes(stockKey(voucherId, i)), bytes(String.valueOf(share)));
+            }
+            connection.set(bytes(SECKILL_BUCKETS_KEY + voucherId), bytes(String.valueOf(bucketCount)));
+            return null;
+        });
+        bucketCounts.put(voucherId, bucketCount);
+        bucketedVouchers.put(voucherId, bucketCount);
+    }
+
+    /**
+     * @return 优惠券的分桶数，没有分桶返回0
+     */
+    public int bucketCount(Long voucherId){
+        Integer count = bucketCounts.get(voucherId, false);
+        if (count == null){
+            String value = stringRedisTemplate.opsForValue().get(SECKILL_BUCKETS_KEY + voucherId);
+            count = StrUtil.isBlank(value) ? 0 : Integer.parseInt(value);
+            bucketCounts.put(voucherId, count);
+            if (count > 1){
+                bucketedVouchers.put(voucherId, count);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 分桶模式的秒杀资格判断，先在自己的桶中记录用户并扣减库存，没有库存时依次尝试其它桶
+     * @return 0：成功 1：库存不足 2：重复下单
+     */
+    public int admit(Long voucherId, Long userId, int bucketCount){
+        int home = bucketOf(userId, bucketCount);
+        Long r = stringRedisTemplate.execute(BUCKET_SCRIPT,
+                Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home)), userId.toString());
+        if (r == null || r != 1){
+            return r == null ? 1 : r.intValue();
+        }
+        // 自己的桶已经没有库存，从随机位置开始尝试其它桶，避免都挤到同一个桶
+        int start = ThreadLocalRandom.current().nextInt(bucketCount);
+        for (int i = 0; i < bucketCount; i++) {
+            int bucket = (start + i) % bucketCount;
+            if (bucket != home && take(stockKey(voucherId, bucket), 1) > 0){
+                return 0;
+            }
+        }
+        // 全部售罄，释放预占的下单资格
+        stringRedisTemplate.opsForSet().remove(orderKey(voucherId, home), userId.toString());
+        return 1;
+    }
+
+    /**
+     * 归还一个用户占用的库存和下单资格，库存放回用户所在的桶
+     */
+    public void restore(Long voucherId, Long userId, int bucketCount){
+        int home = bucketOf(userId, bucketCount);
+        bucketedVouchers.put(voucherId, bucketCount);
+        stringRedisTemplate.opsForValue().increment(stockKey(voucherId, home));
+        stringRedisTemplate.opsForSet().remove(orderKey(voucherId, home), userId.toString());
+    }
+
+    private long take(String key, long count){
+        Long taken = stringRedisTemplate.execute(TAKE_SCRIPT, Collections.singletonList(key), String.valueOf(count));
+        return taken == null ? 0 : taken;
+    }
+
+    private void rebalanceAll(){
+        for (Map.Entry<Long, Integer> entry : bucketedVouchers.entrySet()) {
+            Long voucherId = entry.getKey();
+            // 已经结束的秒杀不再迁移
+            if (seckillGuard.hasEnded(voucherId)){
+                bucketedVouchers.remove(voucherId, entry.getValue());
+                continue;
+            }
+            // 多个节点同一时间只有一个在迁移
+            try (DistributedLock.Handle lock = distributedLock.tryLock(LOCK_KEY_PREFIX + "seckill:rebalance:" + voucherId)) {
+                if (lock == null){
+                    continue;
+                }
+                long total = rebalance(voucherId, entry.getValue());
+                if (total == 0){
+                    // 已经售罄，库存归还时重新登记
+                    bucketedVouchers.remove(voucherId, entry.getValue());
+                } else if (seckillGuard.isSoldOut(voucherId)){
+                    // 迁移中或逐个桶读取库存时可能误判售罄，发现还有库存时清除售罄标记
+                    seckillGuard.clearSoldOut(voucherId);
+                }
+            } catch (Exception e) {
+                log.error("库存分桶迁移失败, voucherId={}", voucherId, e);
+            }
+        }
+    }
+
+    /**
+     * 有的桶已经空了、或者整体剩余不多时，把多出平均值的库存两两迁移给不足的桶。
+     * 每次迁移只涉及两个桶，各自是单key操作，集群模式下也可以执行；
+     * 从源桶取出时不会扣成负数，只有正在迁移的那一部分暂时不可见，不会超卖
+     * @return 所有桶的剩余库存之和
+     */
+    private long rebalance(Long voucherId, int bucketCount){
+        long[] stocks = readStocks(voucherId, bucketCount);
+        long total = 0;
+        long min = Long.MAX_VALUE;
+        for (long stock : stocks) {
+            total += stock;
+            min = Math.min(min, stock);
+        }
+        if (total == 0 || (min > 0 && total > (long) bucketCount * SECKILL_BUCKET_REBALANCE_THRESHOLD)){
+            return total;
+        }
+        long target = total / bucketCount;
+        long extra = total % bucketCount;
+        int to = 0;
+        for (int from = 0; from < bucketCount; from++) {
+            long surplus = stocks[from] - (target + (from < extra ? 1 : 0));
+            while (surplus > 0 && to < bucketCount){
+                long need = target + (to < extra ? 1 : 0) - stocks[to];
+                if (need <= 0){
+                    to++;
+                    continue;
+                }
+                long moved = move(voucherId, from, to, Math.min(need, surplus));
+                if (moved == 0){
+                    // 源桶已经被下单扣完
+                    break;
+                }
+                stocks[from] -= moved;
+                stocks[to] += moved;
+                surplus -= moved;
+            }
+        }
+        log.debug("库存分桶迁移完成, voucherId={}, 剩余库存{}", voucherId, total);
+        return total;
+    }
+
+    /**
+     * 从一个桶取出库存加到另一个桶，加失败时放回原来的桶
+     * @return 实际迁移的数量
+     */
+    private long move(Long voucherId, int from, int to, long count){
+        long taken = take(stockKey(voucherId, from), count);
+        if (taken == 0){
+            return 0;
+        }
+        try {
+            stringRedisTemplate.opsForValue().increment(stockKey(voucherId, to), taken);
+        } catch (RuntimeException e) {
+            try {
+                stringRedisTemplate.opsForValue().increment(stockKey(voucherId, from), taken);
+            } catch (RuntimeException e1) {
+                log.error("库存迁移失败且无法放回, voucherId={}, 桶{}丢失{}个库存", voucherId, from, taken, e1);
+            }
+            throw e;
+        }
+        return taken;
+    }
+
+    /**
+     * 所有桶的剩余库存之和
+     */
+    public long remaining(Long voucherId, int bucketCount){
+        long total = 0;
+        for (long stock : readStocks(voucherId, bucketCount)) {
+            total += stock;
+        }
+        return total;
+    }
+
+    /**
+     * 一次pipeline读取所有桶的库存
+     */
+    private long[] readStocks(Long voucherId, int bucketCount){
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < bucketCount; i++) {
+                connection.get(bytes(stockKey(voucherId, i)));
+            }
+            return null;
+        });
+        long[] stocks = new long[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            Object value = values.get(i);
+            stocks[i] = value == null ? 0 : Math.max(Long.parseLong(value.toString()), 0);
+        }
+        return stocks;
+    }
+
+    private static byte[] bytes(String s){
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,211 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 签名token，hmdp.session.mode=signed 时登录使用。
+ * token = base64url(版本 + 过期时间 + 用户信息) + "." + base64url(HMAC-SHA256前16字节)，
+ * 用户信息用BinaryCacheCodec中UserDTO的二进制结构，校验只需要计算一次HMAC，不访问redis。
+ * token有固定的过期时间，不再随访问续期；登出的token记录在redis的zset中（分数为过期时间），
+ * 各节点启动时加载、之后通过缓存失效广播同步，并定期全量核对一次
+ */
+@Slf4j
+@Component
+public class SignedSessionTokens {
+    private static final byte VERSION = 1;
+    private static final int SIGNATURE_LENGTH = 16;
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final String REVOKED_PREFIX = LOGIN_REVOKED_KEY + ":";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private BinaryCacheCodec binaryCacheCodec;
+    @Resource
+    private CacheInvalidationBus invalidationBus;
+    /**
+     * redis：token对应的用户保存在redis中；signed：签名token
+     */
+    @Value("${hmdp.session.mode:redis}")
+    private String mode;
+    /**
+     * 签名密钥，所有节点必须一致
+     */
+    @Value("${hmdp.session.secret:}")
+    private String secret;
+
+    private SecretKeySpec key;
+    private ThreadLocal<Mac> macs;
+    private BinarySchema<UserDTO> schema;
+    /**
+     * 已登出的token签名 -> token过期时间
+     */
+    private final Map<String, Long> revoked = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService syncExecutor =
+            Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("login-revoked-", true));
+
+    @PostConstruct
+    private void init(){
+        if (StrUtil.isBlank(secret)){
+            // 随机密钥签发的token只在本节点、本次启动有效，签名模式下不允许
+            if (isEnabled()){
+                throw new IllegalStateException("hmdp.session.mode=signed 时必须配置hmdp.session.secret");
+            }
+            secret = RandomUtil.randomString(32);
+        }
+        key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        macs = ThreadLocal.withInitial(this::newMac);
+        schema = binaryCacheCodec.schema(UserDTO.class);
+        invalidationBus.addListener(k -> {
+            if (k.startsWith(REVOKED_PREFIX)){
+                // 广播中没有过期时间，按最长有效期保留，下次全量核对时修正
+                revoked.put(k.substring(REVOKED_PREFIX.length()),
+                        System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LOGIN_USER_TTL));
+            }
+        });
+        syncExecutor.scheduleWithFixedDelay(this::sync, 0, LOGIN_REVOKED_SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        syncExecutor.shutdownNow();
+    }
+
+    /**
+     * 登录时是否签发签名token
+     */
+    public boolean isEnabled(){
+        return "signed".equalsIgnoreCase(mode);
+    }
+
+    /**
+     * 是否是签名token，redis模式的token是不含"."的uuid
+     */
+    public static boolean isSigned(String token){
+        return token.indexOf('.') > 0;
+    }
+
+    /**
+     * 签发token，有效期与redis模式相同
+     */
+    public String issue(UserDTO user){
+        long expireAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LOGIN_USER_TTL);
+        BinarySchema.Writer out = new BinarySchema.Writer(64);
+        out.writeByte(VERSION);
+        out.writeFixed64(expireAt);
+        schema.write(user, out);
+        byte[] payload = out.toByteArray();
+        return ENCODER.encodeToString(payload) + "." + ENCODER.encodeToString(sign(payload));
+    }
+
+    /**
+     * 校验token
+     * @return 用户，签名错误、已过期或者已登出返回null
+     */
+    public UserDTO verify(String token){
+        int dot = token.indexOf('.');
+        if (dot <= 0){
+            return null;
+        }
+        String signature = token.substring(dot + 1);
+        byte[] payload;
+        byte[] expected;
+        try {
+            payload = Base64.getUrlDecoder().decode(token.substring(0, dot));
+            expected = Base64.getUrlDecoder().decode(signature);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        // 同一个签名有多种base64写法（补齐"="、末尾字符的低位），只接受标准写法，否则改写后可以绕过登出
+        if (expected.length != SIGNATURE_LENGTH || !ENCODER.encodeToString(expected).equals(signature)){
+            return null;
+        }
+        if (payload.length < 9 || payload[0] != VERSION || !MessageDigest.isEqual(sign(payload), expected)){
+            return null;
+        }
+        BinarySchema.Reader in = new BinarySchema.Reader(payload, 1);
+        if (in.readFixed64() < System.currentTimeMillis() || revoked.containsKey(signature)){
+            return null;
+        }
+        return schema.read(in);
+    }
+
+    /**
+     * 登出，token在过期之前都不能再使用
+     */
+    public void revoke(String token){
+        UserDTO user = verify(token);
+        if (user == null){
+            return;
+        }
+        int dot = token.indexOf('.');
+        String signature = token.substring(dot + 1);
+        long expireAt = new BinarySchema.Reader(Base64.getUrlDecoder().decode(token.substring(0, dot)), 1).readFixed64();
+        stringRedisTemplate.opsForZSet().add(LOGIN_REVOKED_KEY, signature, expireAt);
+        revoked.put(signature, expireAt);
+        invalidationBus.publish(REVOKED_PREFIX + signature);
+    }
+
+    /**
+     * 删除已经过期的登出记录，并从redis全量加载，补上丢失的广播
+     */
+    private void sync(){
+        try {
+            long now = System.currentTimeMillis();
+            stringRedisTemplate.opsForZSet().removeRangeByScore(LOGIN_REVOKED_KEY, 0, now);
+            Set<ZSetOperations.TypedTuple<String>> all =
+                    stringRedisTemplate.opsForZSet().rangeWithScores(LOGIN_REVOKED_KEY, 0, -1);
+            if (all != null){
+                for (ZSetOperations.TypedTuple<String> tuple : all) {
+                    Double score = tuple.getScore();
+                    revoked.put(tuple.getValue(), score == null ? now : score.longValue());
+                }
+            }
+            revoked.values().removeIf(expireAt -> expireAt < now);
+        } catch (Exception e) {
+            log.error("同步已登出的token失败", e);
+        }
+    }
+
+    private byte[] sign(byte[] payload){
+        return Arrays.copyOf(macs.get().doFinal(payload), SIGNATURE_LENGTH);
+    }
+
+    private Mac newMac(){
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("初始化token签名失败", e);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.hmdp.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 分段锁，按key的hash取固定数量的锁之一。
+ * 相同的key一定拿到同一把锁，不同的key只在hash冲突时互相等待，内存占用固定，
+ * 用来代替 synchronized(xxx.toString().intern())
+ */
+public class StripedLock {
+    private final ReentrantLock[] locks;
+    private final int mask;
+
+    /**
+     * @param stripes 锁的数量，向上取整为2的幂
+     */
+    public StripedLock(int stripes) {
+        int size = Integer.highestOneBit(Math.max(stripes - 1, 1)) << 1;
+        this.locks = new ReentrantLock[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    public ReentrantLock get(Object... keys){
+        int h = Arrays.hashCode(keys);
+        // 高位扩散到低位，减少只有高位不同的key冲突
+        h ^= (h >>> 16);
+        h *= 0x85EBCA6B;
+        h ^= (h >>> 13);
+        return locks[h & mask];
+    }
+}
@@ -0,0 +1,63 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 登录用户UserDTO与redis hash之间的转换，代替BeanUtil的反射和类型转换。
+ * 读取时用HMGET按固定顺序取字段，直接构造对象，不经过中间map；
+ * UserDTO增加字段时要同步修改这里
+ */
+public class UserHashCodec {
+    private static final String ID = "id";
+    private static final String NICK_NAME = "nickName";
+    private static final String ICON = "icon";
+
+    /**
+     * HMGET的字段，顺序与{@link #fromValues(List)}一致
+     */
+    public static final List<Object> FIELDS = Collections.unmodifiableList(Arrays.asList(ID, NICK_NAME, ICON));
+
+    private UserHashCodec() {
+    }
+
+    /**
+     * 转为hash，值为null的字段不保存
+     */
+    public static Map<String, String> toHash(UserDTO user){
+        Map<String, String> hash = new HashMap<>(4);
+        if (user.getId() != null){
+            hash.put(ID, user.getId().toString());
+        }
+        if (user.getNickName() != null){
+            hash.put(NICK_NAME, user.getNickName());
+        }
+        if (user.getIcon() != null){
+            hash.put(ICON, user.getIcon());
+        }
+        return hash;
+    }
+
+    /**
+     * @param values HMGET {@link #FIELDS} 的结果
+     * @return 用户，hash不存在时返回null
+     */
+    public static UserDTO fromValues(List<Object> values){
+        Object id = values.get(0);
+        Object nickName = values.get(1);
+        Object icon = values.get(2);
+        if (id == null && nickName == null && icon == null){
+            return null;
+        }
+        UserDTO user = new UserDTO();
+        user.setId(id == null ? null : Long.valueOf((String) id));
+        user.setNickName((String) nickName);
+        user.setIcon((String) icon);
+        return user;
+    }
+}
@@ -0,0 +1,15 @@
+-- 释放可重入锁，只有持有者才能释放，重入次数减到0时删除并通知等待者
+-- KEYS[1] 锁的key
+-- ARGV[1] 持有者  ARGV[2] 租期，毫秒  ARGV[3] 锁释放的通知频道，频道不是key，集群模式下不能放在KEYS中
+-- 返回 -1：不是持有者 0：还有重入 1：已经释放
+if (redis.call('hexists', KEYS[1], ARGV[1]) == 0) then
+    return -1
+end
+local count = redis.call('hincrby', KEYS[1], ARGV[1], -1)
+if (count > 0) then
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return 0
+end
+redis.call('del', KEYS[1])
+redis.call('publish', ARGV[3], KEYS[1])
+return 1
@@ -0,0 +1,12 @@
+-- 超时取消的订单归还redis库存，订单从超时队列中删除成功才归还，重复执行不会多还
+-- KEYS[1] 超时队列zset  KEYS[i+1] 第i个订单的库存key
+-- ARGV[i] 第i个订单的id
+-- 返回实际归还的订单数
+local restored = 0
+for i = 1, #ARGV do
+    if (redis.call('zrem', KEYS[1], ARGV[i]) == 1) then
+        redis.call('incr', KEYS[i + 1])
+        restored = restored + 1
+    end
+end
+return restored
@@ -0,0 +1,25 @@
+-- 滑动窗口限流，所有窗口都没有超过上限才放行，放行时在每个窗口中记录本次请求
+-- KEYS[i] 第i个窗口的zset
+-- ARGV[1] 本次请求的唯一标识  ARGV[2i] 第i个窗口的长度ms  ARGV[2i+1] 第i个窗口的次数上限
+-- 返回 0：放行 大于0：还需要等待的毫秒数
+local t = redis.call('time')
+local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+local wait = 0
+for i = 1, #KEYS do
+    local window = tonumber(ARGV[2 * i])
+    local limit = tonumber(ARGV[2 * i + 1])
+    redis.call('zremrangebyscore', KEYS[i], 0, now - window)
+    if (redis.call('zcard', KEYS[i]) >= limit) then
+        -- 最早的一次请求滑出窗口后才能再次请求
+        local oldest = redis.call('zrange', KEYS[i], 0, 0, 'WITHSCORES')
+        wait = math.max(wait, tonumber(oldest[2]) + window - now, 1)
+    end
+end
+if (wait > 0) then
+    return wait
+end
+for i = 1, #KEYS do
+    redis.call('zadd', KEYS[i], now, ARGV[1])
+    redis.call('pexpire', KEYS[i], ARGV[2 * i])
+end
+return 0
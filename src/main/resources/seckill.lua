@@ -0,0 +1,15 @@
+-- 秒杀资格判断：库存是否充足、用户是否已经下过单，通过后扣减库存、记录下单用户并把订单放入消息队列
+-- KEYS[1] 库存key  KEYS[2] 已下单用户的set  KEYS[3] 订单stream
+-- ARGV[1] 用户id  ARGV[2] 优惠券id  ARGV[3] 订单id
+-- 返回 0：成功 1：库存不足 2：重复下单
+local stock = tonumber(redis.call('get', KEYS[1]))
+if (stock == nil or stock <= 0) then
+    return 1
+end
+if (redis.call('sismember', KEYS[2], ARGV[1]) == 1) then
+    return 2
+end
+redis.call('decr', KEYS[1])
+redis.call('sadd', KEYS[2], ARGV[1])
+redis.call('xadd', KEYS[3], '*', 'userId', ARGV[1], 'voucherId', ARGV[2], 'id', ARGV[3])
+return 0
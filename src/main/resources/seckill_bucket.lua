@@ -0,0 +1,13 @@
+-- 分桶模式下的秒杀资格判断，只操作用户所在的桶，桶内的key在同一个slot
+-- KEYS[1] 分桶库存key  KEYS[2] 分桶的已下单用户set
+-- ARGV[1] 用户id
+-- 返回 0：成功 1：本桶库存不足，已经预占下单资格，需要到其它桶扣减库存 2：重复下单
+if (redis.call('sadd', KEYS[2], ARGV[1]) == 0) then
+    return 2
+end
+local stock = tonumber(redis.call('get', KEYS[1]))
+if (stock ~= nil and stock > 0) then
+    redis.call('decr', KEYS[1])
+    return 0
+end
+return 1
@@ -0,0 +1,10 @@
+-- 从库存中取出最多ARGV[1]个，库存不会被扣成负数
+-- KEYS[1] 库存key
+-- 返回实际取出的数量
+local stock = tonumber(redis.call('get', KEYS[1]))
+if (stock == nil or stock <= 0) then
+    return 0
+end
+local n = math.min(stock, tonumber(ARGV[1]))
+redis.call('decrby', KEYS[1], n)
+return n
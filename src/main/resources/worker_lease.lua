@@ -0,0 +1,10 @@
+-- 申请或续期机器id的租约，没有人持有或者自己持有时成功
+-- KEYS[1] 机器id的key
+-- ARGV[1] 持有者  ARGV[2] 租期，毫秒
+-- 返回 1：成功 0：被其它节点持有
+local holder = redis.call('get', KEYS[1])
+if (holder == false or holder == ARGV[1]) then
+    redis.call('set', KEYS[1], ARGV[1], 'PX', ARGV[2])
+    return 1
+end
+return 0
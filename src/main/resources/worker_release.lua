@@ -0,0 +1,7 @@
+-- 释放机器id的租约，只有持有者才能释放
+-- KEYS[1] 机器id的key
+-- ARGV[1] 持有者
+if (redis.call('get', KEYS[1]) == ARGV[1]) then
+    return redis.call('del', KEYS[1])
+end
+return 0
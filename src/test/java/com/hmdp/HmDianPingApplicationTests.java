@@ -1,5 +1,6 @@
 package com.hmdp;
 
+import com.hmdp.config.CacheWarmUpRunner;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.CacheClient;
@@ -16,8 +17,10 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_WARMUP_READY_COVERAGE;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
-@SpringBootTest
+@SpringBootTest(properties = "hmdp.cache.warmup.enabled=false")
 class HmDianPingApplicationTests {
     @Autowired
     private ShopServiceImpl shopService;
@@ -26,6 +29,8 @@ class HmDianPingApplicationTests {
 
     @Resource
     private RedisIdWorker redisIdWorker;
+    @Resource
+    private CacheWarmUpRunner cacheWarmUpRunner;
 
     private ExecutorService es = Executors.newFixedThreadPool(500);
 
@@ -63,4 +68,13 @@ class HmDianPingApplicationTests {
         cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY + 1L, shop, 10L, TimeUnit.SECONDS);
 //        System.out.println("nihao");
     }
+
+    /**
+     * 手动触发一次缓存预热
+     */
+    @Test
+    void testWarmUp() {
+        cacheWarmUpRunner.warmUp().join();
+        assertTrue(cacheWarmUpRunner.coverage() >= CACHE_WARMUP_READY_COVERAGE);
+    }
 }
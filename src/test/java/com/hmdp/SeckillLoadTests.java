@@ -0,0 +1,326 @@
+package com.hmdp;
+
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.BooleanUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.SeckillStockBuckets;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+import static com.hmdp.utils.RedisConstants.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 秒杀下单和缓存的压测，同时校验超卖和一人多单。
+ * 数据库使用H2内存库，redis使用本地实例的独立库（默认15号库，压测开始时清空），需要先启动redis：
+ * mvn test -Dtest=SeckillLoadTests -Dhmdp.loadtest=true -Dhmdp.loadtest.threads=200 -Dhmdp.loadtest.users=20000
+ * 可调参数见下方的字段，修改下单链路后上线前都要跑一遍
+ */
+@SpringBootTest
+@ActiveProfiles("loadtest")
+@EnabledIfSystemProperty(named = "hmdp.loadtest", matches = "true")
+class SeckillLoadTests {
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 并发线程数
+     */
+    private final int threads = Integer.getInteger("hmdp.loadtest.threads", 200);
+    /**
+     * 参与秒杀的用户数
+     */
+    private final int users = Integer.getInteger("hmdp.loadtest.users", 10000);
+    /**
+     * 每个用户的请求次数，大于1时模拟重复提交
+     */
+    private final int requestsPerUser = Integer.getInteger("hmdp.loadtest.requests-per-user", 2);
+    private final int stock = Integer.getInteger("hmdp.loadtest.stock", 1000);
+    /**
+     * 库存分桶数，0或1表示不分桶
+     */
+    private final int buckets = Integer.getInteger("hmdp.loadtest.buckets", 0);
+    /**
+     * 缓存压测的请求数，以及其中不存在的店铺所占的比例
+     */
+    private final int cacheRequests = Integer.getInteger("hmdp.loadtest.cache-requests", 200000);
+    private final int missPercent = Integer.getInteger("hmdp.loadtest.miss-percent", 10);
+    /**
+     * 等待异步订单全部写入数据库的最长时间
+     */
+    private final long drainTimeout = Long.getLong("hmdp.loadtest.drain-timeout", 60000L);
+
+    @BeforeEach
+    void resetRedis() {
+        // 清空压测库，重新创建订单消费者组，消费线程下次读取时即可继续
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.flushDb();
+            return connection.execute("XGROUP", bytes("CREATE"), bytes(SECKILL_ORDER_STREAM),
+                    bytes(SECKILL_ORDER_GROUP), bytes("0"), bytes("MKSTREAM"));
+        });
+    }
+
+    @Test
+    void testSeckill() throws InterruptedException {
+        Long voucherId = createVoucher();
+        // 打乱请求顺序，同一用户的重复提交分散在不同时间、不同线程
+        List<Long> requests = new ArrayList<>(users * requestsPerUser);
+        for (long userId = 1; userId <= users; userId++) {
+            for (int i = 0; i < requestsPerUser; i++) {
+                requests.add(userId);
+            }
+        }
+        Collections.shuffle(requests);
+
+        Map<Long, Set<Long>> admitted = new ConcurrentHashMap<>();
+        Map<String, AtomicInteger> failures = new ConcurrentHashMap<>();
+        LatencyRecorder latency = new LatencyRecorder(requests.size());
+        long elapsed = run(requests.size(), latency, i -> {
+            Long userId = requests.get(i);
+            UserDTO user = new UserDTO();
+            user.setId(userId);
+            UserHolder.saveUser(user);
+            try {
+                Result result = voucherOrderService.seckillVoucher(voucherId);
+                if (BooleanUtil.isTrue(result.getSuccess())){
+                    admitted.computeIfAbsent(userId, k -> ConcurrentHashMap.newKeySet()).add((Long) result.getData());
+                } else {
+                    failures.computeIfAbsent(result.getErrorMsg(), k -> new AtomicInteger()).incrementAndGet();
+                }
+            } finally {
+                UserHolder.removeUser();
+            }
+        });
+
+        // 1. redis中的资格判断结果：成功的订单数不能超过库存，一个用户只能拿到一个订单id
+        int orderIds = admitted.values().stream().mapToInt(Set::size).sum();
+        long duplicateAdmitted = admitted.values().stream().filter(ids -> ids.size() > 1).count();
+        // 2. 等待异步订单全部落库后，核对数据库
+        long drained = waitForOrders(voucherId, orderIds);
+        List<VoucherOrder> orders = voucherOrderService.query().eq("voucher_id", voucherId).list();
+        Set<Long> orderUsers = new HashSet<>();
+        long duplicateOrders = orders.stream().filter(o -> !orderUsers.add(o.getUserId())).count();
+        int dbStock = seckillVoucherService.getById(voucherId).getStock();
+        long redisStock = redisStock(voucherId);
+
+        long oversell = Math.max(0, orderIds - stock) + Math.max(0, orders.size() - stock)
+                + Math.max(0, -dbStock) + Math.max(0, -redisStock);
+        System.out.println("========== 秒杀压测 ==========");
+        System.out.printf("线程数 %d, 用户数 %d, 每人请求 %d 次, 库存 %d, 分桶数 %d%n",
+                threads, users, requestsPerUser, stock, buckets);
+        latency.print(elapsed);
+        System.out.printf("抢到订单 %d, 失败 %s%n", orderIds, failures);
+        System.out.printf("落库订单 %d, 落库耗时 %dms, 数据库剩余库存 %d, redis剩余库存 %d%n",
+                orders.size(), drained, dbStock, redisStock);
+        System.out.printf("超卖 %d, 一人多单(redis) %d, 一人多单(数据库) %d%n",
+                oversell, duplicateAdmitted, duplicateOrders);
+
+        assertEquals(0, oversell, "超卖");
+        assertEquals(0, duplicateAdmitted, "一人多单(redis)");
+        assertEquals(0, duplicateOrders, "一人多单(数据库)");
+        assertEquals(orderIds, orders.size(), "订单丢失");
+        assertEquals(stock, dbStock + orders.size(), "数据库库存与订单数不一致");
+        assertEquals(dbStock, redisStock, "redis库存与数据库库存不一致");
+    }
+
+    @Test
+    void testCacheClient() throws InterruptedException {
+        int shopCount = shopService.count();
+        Map<String, Long> before = cacheClient.getStats().snapshot();
+        AtomicLong wrong = new AtomicLong();
+        LatencyRecorder latency = new LatencyRecorder(cacheRequests);
+        long elapsed = run(cacheRequests, latency, i -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            // 一部分请求不存在的店铺，检验缓存穿透的处理
+            boolean exists = random.nextInt(100) >= missPercent;
+            long id = exists ? random.nextInt(shopCount) + 1 : shopCount + 1 + random.nextInt(shopCount);
+            Shop shop = cacheClient.queryWithPassThrough(
+                    CACHE_SHOP_KEY, id, Shop.class, shopService::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            if (exists ? shop == null || shop.getId() != id : shop != null){
+                wrong.incrementAndGet();
+            }
+        });
+
+        Map<String, Long> after = cacheClient.getStats().snapshot();
+        StringBuilder stats = new StringBuilder();
+        after.forEach((k, v) -> stats.append(k).append('=').append(v - before.getOrDefault(k, 0L)).append(' '));
+        System.out.println("========== 缓存压测 ==========");
+        System.out.printf("线程数 %d, 请求数 %d, 店铺数 %d, 不存在的店铺占比 %d%%%n",
+                threads, cacheRequests, shopCount, missPercent);
+        latency.print(elapsed);
+        System.out.println("缓存统计 " + stats);
+        System.out.println("结果错误 " + wrong.get());
+        assertEquals(0, wrong.get(), "缓存返回了错误的结果");
+    }
+
+    private Long createVoucher(){
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测秒杀券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStock(stock);
+        voucher.setBeginTime(LocalDateTime.now().minusHours(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucher.setBucketCount(buckets);
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    private long redisStock(Long voucherId){
+        if (buckets <= 1){
+            String value = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId);
+            return value == null ? 0 : Long.parseLong(value);
+        }
+        long total = 0;
+        for (int i = 0; i < buckets; i++) {
+            String value = stringRedisTemplate.opsForValue().get(SeckillStockBuckets.stockKey(voucherId, i));
+            total += value == null ? 0 : Long.parseLong(value);
+        }
+        return total;
+    }
+
+    /**
+     * 等待数据库中的订单数达到期望值，超时后直接返回
+     * @return 等待的时间ms
+     */
+    private long waitForOrders(Long voucherId, int expected){
+        long begin = System.currentTimeMillis();
+        while (System.currentTimeMillis() - begin < drainTimeout
+                && voucherOrderService.query().eq("voucher_id", voucherId).count() < expected){
+            ThreadUtil.sleep(100);
+        }
+        return System.currentTimeMillis() - begin;
+    }
+
+    /**
+     * 用固定数量的线程执行count次任务，记录每次的耗时
+     * @return 总耗时ns
+     */
+    private long run(int count, LatencyRecorder latency, IntConsumer task) throws InterruptedException {
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            es.submit(() -> {
+                try {
+                    start.await();
+                    int i;
+                    while ((i = next.getAndIncrement()) < count){
+                        long begin = System.nanoTime();
+                        try {
+                            task.accept(i);
+                        } catch (Exception e) {
+                            latency.error();
+                        }
+                        latency.record(System.nanoTime() - begin);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        es.shutdown();
+        return elapsed;
+    }
+
+    private static byte[] bytes(String s){
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 记录每次请求的耗时，结束后排序计算分位数
+     */
+    private static class LatencyRecorder {
+        private final long[] nanos;
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicInteger errors = new AtomicInteger();
+
+        LatencyRecorder(int capacity) {
+            this.nanos = new long[capacity];
+        }
+
+        void record(long nano){
+            int i = size.getAndIncrement();
+            if (i < nanos.length){
+                nanos[i] = nano;
+            }
+        }
+
+        void error(){
+            errors.incrementAndGet();
+        }
+
+        void print(long elapsedNanos){
+            int n = Math.min(size.get(), nanos.length);
+            long[] sorted = Arrays.copyOf(nanos, n);
+            Arrays.sort(sorted);
+            System.out.printf("请求 %d, 异常 %d, 耗时 %dms, 吞吐量 %.0f/s%n", n, errors.get(),
+                    TimeUnit.NANOSECONDS.toMillis(elapsedNanos), n * 1e9 / elapsedNanos);
+            System.out.printf("延迟 p50=%.2fms p90=%.2fms p99=%.2fms p999=%.2fms max=%.2fms%n",
+                    percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+                    percentile(sorted, 99.9), percentile(sorted, 100));
+        }
+
+        private static double percentile(long[] sorted, double p){
+            if (sorted.length == 0){
+                return 0;
+            }
+            int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+        }
+    }
+}
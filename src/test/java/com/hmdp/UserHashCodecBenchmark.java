@@ -0,0 +1,88 @@
+package com.hmdp;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.bean.copier.CopyOptions;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.UserHashCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 登录用户与redis hash互相转换的性能对比：hutool BeanUtil（原来的实现） vs UserHashCodec。
+ * 不依赖spring和redis，在IDE中直接运行main方法即可
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserHashCodecBenchmark {
+    private UserDTO user;
+    /**
+     * HGETALL的结果
+     */
+    private Map<Object, Object> entries;
+    /**
+     * HMGET的结果
+     */
+    private List<Object> values;
+
+    @Setup
+    public void setup(){
+        user = new UserDTO();
+        user.setId(1010L);
+        user.setNickName("user_slxaxy2au9");
+        user.setIcon("/imgs/icons/kazuqbfd5gvp4b3n.png");
+        entries = new HashMap<>();
+        entries.put("id", "1010");
+        entries.put("nickName", user.getNickName());
+        entries.put("icon", user.getIcon());
+        values = Arrays.asList("1010", user.getNickName(), user.getIcon());
+    }
+
+    @Benchmark
+    public UserDTO readBeanUtil(){
+        return BeanUtil.fillBeanWithMap(entries, new UserDTO(), false);
+    }
+
+    @Benchmark
+    public UserDTO readCodec(){
+        return UserHashCodec.fromValues(values);
+    }
+
+    @Benchmark
+    public Map<String, Object> writeBeanUtil(){
+        return BeanUtil.beanToMap(user, new HashMap<>(), CopyOptions.create()
+                .setIgnoreNullValue(true)
+                .setFieldValueEditor((fieldName, fieldValue) -> fieldValue.toString()));
+    }
+
+    @Benchmark
+    public Map<String, String> writeCodec(){
+        return UserHashCodec.toHash(user);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(UserHashCodecBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
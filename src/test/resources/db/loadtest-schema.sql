@@ -0,0 +1,77 @@
+-- 压测用的表结构，与 db/hmdp.sql 中的同名表保持一致，去掉了H2不支持的MySQL语法
+
+CREATE TABLE tb_shop_type (
+  id bigint NOT NULL AUTO_INCREMENT,
+  name varchar(32) NULL,
+  icon varchar(255) NULL,
+  sort int NULL,
+  create_time timestamp NULL DEFAULT CURRENT_TIMESTAMP,
+  update_time timestamp NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (id)
+);
+
+CREATE TABLE tb_shop (
+  id bigint NOT NULL AUTO_INCREMENT,
+  name varchar(128) NOT NULL,
+  type_id bigint NOT NULL,
+  images varchar(1024) NOT NULL,
+  area varchar(128) NULL,
+  address varchar(255) NOT NULL,
+  x double NOT NULL,
+  y double NOT NULL,
+  avg_price bigint NULL,
+  sold int NOT NULL,
+  comments int NOT NULL,
+  score int NOT NULL,
+  open_hours varchar(32) NULL,
+  create_time timestamp NULL DEFAULT CURRENT_TIMESTAMP,
+  update_time timestamp NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (id)
+);
+
+CREATE TABLE tb_voucher (
+  id bigint NOT NULL AUTO_INCREMENT,
+  shop_id bigint NULL,
+  title varchar(255) NOT NULL,
+  sub_title varchar(255) NULL,
+  rules varchar(1024) NULL,
+  pay_value bigint NOT NULL,
+  actual_value bigint NOT NULL,
+  type tinyint NOT NULL DEFAULT 0,
+  status tinyint NOT NULL DEFAULT 1,
+  create_time timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  update_time timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (id)
+);
+
+CREATE TABLE tb_seckill_voucher (
+  voucher_id bigint NOT NULL,
+  stock int NOT NULL,
+  create_time timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  begin_time timestamp NOT NULL,
+  end_time timestamp NOT NULL,
+  update_time timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (voucher_id)
+);
+
+CREATE TABLE tb_voucher_order (
+  id bigint NOT NULL,
+  user_id bigint NOT NULL,
+  voucher_id bigint NOT NULL,
+  pay_type tinyint NOT NULL DEFAULT 1,
+  status tinyint NOT NULL DEFAULT 1,
+  create_time timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  pay_time timestamp NULL,
+  use_time timestamp NULL,
+  refund_time timestamp NULL,
+  update_time timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (id),
+  UNIQUE KEY uk_user_voucher (user_id, voucher_id)
+);
+
+INSERT INTO tb_shop_type (id, name, icon, sort) VALUES (1, '美食', '/types/ms.png', 1);
+
+-- 1000个店铺，缓存压测时按id随机读取
+INSERT INTO tb_shop (name, type_id, images, area, address, x, y, avg_price, sold, comments, score, open_hours)
+SELECT CONCAT('压测店铺', X), 1, '', '压测商圈', CONCAT('压测路', X, '号'), 120.15 + X / 100000.0, 30.25, 80, 0, 0, 40, '10:00-22:00'
+FROM SYSTEM_RANGE(1, 1000);